@@ -0,0 +1,529 @@
+package ru.home.grpc.chat.server.loadgen;
+
+import com.google.protobuf.Timestamp;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import ru.home.grpc.chat.AuthRequest;
+import ru.home.grpc.chat.ChatServiceGrpc;
+import ru.home.grpc.chat.ClientMessage;
+import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.server.cluster.LocalMessageBus;
+import ru.home.grpc.chat.server.configuration.KeepAliveProperties;
+import ru.home.grpc.chat.server.configuration.ThreadPoolTaskExecutorConfig;
+import ru.home.grpc.chat.server.metrics.MetricsInterceptor;
+import ru.home.grpc.chat.server.server.AdmissionInterceptor;
+import ru.home.grpc.chat.server.server.ChatServer;
+import ru.home.grpc.chat.server.server.ConnectionLimiter;
+import ru.home.grpc.chat.server.server.ExecutorMode;
+import ru.home.grpc.chat.server.server.TransportType;
+import ru.home.grpc.chat.server.service.ChatService;
+import ru.home.grpc.chat.server.service.DemoAuthenticationService;
+import ru.home.grpc.chat.server.service.HeaderInterceptor;
+import ru.home.grpc.chat.server.service.MessageLog;
+import ru.home.grpc.chat.server.service.OpaqueTokenService;
+import ru.home.grpc.chat.server.service.RateLimiter;
+import ru.home.grpc.chat.server.service.RoomHistory;
+import ru.home.grpc.chat.server.service.SessionRegistry;
+import ru.home.grpc.chat.server.service.SlowConsumerPolicy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLIENT_BASIC;
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLIENT_TOKEN;
+
+/**
+ * End-to-end load test of one server: N authenticated chat streams, fixed total send rate,
+ * delivery latency histograms (HdrHistogram)
+ * <br> transport=inprocess - InProcessServerBuilder, no network and no netty (service cost only),
+ * netty - ChatServer on loopback, one connection per client
+ * <br> Clients are grouped to rooms of room-size, each message is delivered to all members of sender room
+ * <br> delivery - ServerMessage.timestamp (server accepted message) to receive
+ * <br> end-to-end - scheduled send time (carried in message text) to receive,
+ * so sender falling behind schedule is not hidden (coordinated omission)
+ * <br> Run: java -cp benchmarks/target/benchmarks.jar ru.home.grpc.chat.server.loadgen.LoadGenerator
+ * --transport=netty --clients=1000 --room-size=10 --rate=10000 --warmup=5 --duration=20 [--executor=DIRECT]
+ * <br> Each client gets "entered the chat" of all clients started after it, so start of 10k clients takes a while
+ */
+public class LoadGenerator {
+
+    private static final String SERVER_NAME = "load";
+
+    // max recorded latency 1 minute, microseconds
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+    private final String transport;
+    private final int clientCount;
+    private final int roomSize;
+    private final int rate;
+    private final int warmup;
+    private final int duration;
+    private final ExecutorMode executorMode;
+
+    private final Recorder deliveryRecorder = new Recorder(MAX_LATENCY, 3);
+    private final Recorder endToEndRecorder = new Recorder(MAX_LATENCY, 3);
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    // warmup included, per second report
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private final List<LoadClient> clients = new ArrayList<>();
+
+    private volatile boolean sending;
+
+    // messages scheduled before (warmup) are not counted as delivered, epoch micros
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    // server side
+    private Path logDir;
+    private SessionRegistry registry;
+    private ChatService chatService;
+    private ThreadPoolTaskExecutor outboundExecutor;
+    private ThreadPoolTaskExecutor authExecutor;
+    private Server inProcessServer;
+    private ChatServer chatServer;
+
+
+    LoadGenerator(Map<String, String> options) {
+
+        transport = options.getOrDefault("transport", "inprocess");
+        clientCount = Integer.parseInt(options.getOrDefault("clients", "100"));
+        roomSize = Integer.parseInt(options.getOrDefault("room-size", "10"));
+        rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        duration = Integer.parseInt(options.getOrDefault("duration", "20"));
+        executorMode = ExecutorMode.valueOf(options.getOrDefault("executor", "DEFAULT").toUpperCase());
+
+        if (!"inprocess".equals(transport) && !"netty".equals(transport)) {
+            throw new IllegalArgumentException("transport should be inprocess or netty");
+        }
+        if (clientCount <= 0 || roomSize <= 0 || rate <= 0 || warmup < 0 || duration <= 0) {
+            throw new IllegalArgumentException("clients, room-size, rate, duration should be > 0");
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        // no spring context here, logback defaults to DEBUG; per client INFO logs of server are noise
+        LoggingSystem loggingSystem = LoggingSystem.get(LoadGenerator.class.getClassLoader());
+        loggingSystem.setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.INFO);
+        loggingSystem.setLogLevel("ru.home.grpc.chat.server", LogLevel.WARN);
+
+        LoadGenerator generator = new LoadGenerator(options);
+        try {
+            generator.startServer();
+            generator.startClients();
+            generator.run();
+        }
+        finally {
+            generator.stop();
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private void startServer() throws Exception {
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 16);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 60);
+        registry.postConstruct();
+
+        OpaqueTokenService tokenService = new OpaqueTokenService();
+        tokenService.setRegistry(registry);
+
+        logDir = Files.createTempDirectory("load-log");
+        RoomHistory roomHistory = new RoomHistory();
+        ReflectionTestUtils.setField(roomHistory, "size", 64);
+        roomHistory.postConstruct();
+        registry.setRoomHistory(roomHistory);
+
+        MessageLog messageLog = new MessageLog();
+        messageLog.setRoomHistory(roomHistory);
+        ReflectionTestUtils.setField(messageLog, "dir", logDir.toString());
+        ReflectionTestUtils.setField(messageLog, "segmentSize", 64 * 1024 * 1024);
+        ReflectionTestUtils.setField(messageLog, "maxSegments", 2);
+        messageLog.postConstruct();
+
+        ThreadPoolTaskExecutorConfig executorConfig = new ThreadPoolTaskExecutorConfig();
+        outboundExecutor = executorConfig.outboundExecutor(0);
+        outboundExecutor.initialize();
+        authExecutor = (ThreadPoolTaskExecutor) executorConfig.authExecutor("pool", 0, clientCount);
+        authExecutor.initialize();
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
+        metricsInterceptor.setMeterRegistry(meterRegistry);
+
+        chatService = new ChatService();
+        chatService.setRegistry(registry);
+        chatService.setTokenService(tokenService);
+        chatService.setMessageBus(new LocalMessageBus());
+        chatService.setMeterRegistry(meterRegistry);
+        // fields not set - rate limits disabled
+        chatService.setRateLimiter(new RateLimiter());
+        chatService.setMessageLog(messageLog);
+        chatService.setRoomHistory(roomHistory);
+        chatService.setAuthenticationService(new DemoAuthenticationService());
+        chatService.setAuthExecutor(authExecutor);
+        chatService.setOutboundExecutor(outboundExecutor);
+        ReflectionTestUtils.setField(chatService, "outboundCapacity", 1024);
+        ReflectionTestUtils.setField(chatService, "slowConsumerPolicy", SlowConsumerPolicy.DROP_OLDEST);
+        ReflectionTestUtils.setField(chatService, "batchEnabled", true);
+        ReflectionTestUtils.setField(chatService, "batchWindow", 2);
+        ReflectionTestUtils.setField(chatService, "batchMaxMessages", 64);
+        chatService.postConstruct();
+
+        HeaderInterceptor headerInterceptor = new HeaderInterceptor();
+        headerInterceptor.setTokenService(tokenService);
+        headerInterceptor.setMeterRegistry(meterRegistry);
+        headerInterceptor.postConstruct();
+
+        if ("inprocess".equals(transport)) {
+            inProcessServer = InProcessServerBuilder.forName(SERVER_NAME)
+                .addService(ServerInterceptors.intercept(chatService.bindSerializedService(),
+                    headerInterceptor, metricsInterceptor))
+                .build()
+                .start();
+        }
+        else {
+            // limits not set - admission control disabled
+            ConnectionLimiter connectionLimiter = new ConnectionLimiter();
+            connectionLimiter.setMeterRegistry(meterRegistry);
+            connectionLimiter.postConstruct();
+            AdmissionInterceptor admissionInterceptor = new AdmissionInterceptor();
+            admissionInterceptor.setMeterRegistry(meterRegistry);
+            ReflectionTestUtils.setField(admissionInterceptor, "retryAfter", 1000L);
+            admissionInterceptor.postConstruct();
+
+            chatServer = new ChatServer();
+            chatServer.setChatService(chatService);
+            chatServer.setHeaderInterceptor(headerInterceptor);
+            chatServer.setMetricsInterceptor(metricsInterceptor);
+            chatServer.setConnectionLimiter(connectionLimiter);
+            chatServer.setAdmissionInterceptor(admissionInterceptor);
+            chatService.setAdmissionInterceptor(admissionInterceptor);
+            chatServer.setMeterRegistry(meterRegistry);
+            chatServer.setKeepAlive(new KeepAliveProperties());
+            chatServer.port = 0;
+            ReflectionTestUtils.setField(chatServer, "bossThreads", 1);
+            ReflectionTestUtils.setField(chatServer, "transportType", TransportType.AUTO);
+            ReflectionTestUtils.setField(chatServer, "allocator", "pooled");
+            ReflectionTestUtils.setField(chatServer, "tcpNoDelay", true);
+            ReflectionTestUtils.setField(chatServer, "writeBufferLow", 32 * 1024);
+            ReflectionTestUtils.setField(chatServer, "writeBufferHigh", 64 * 1024);
+            ReflectionTestUtils.setField(chatServer, "executorMode", executorMode);
+            chatServer.postConstruct();
+        }
+    }
+
+
+    private void startClients() throws InterruptedException {
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < clientCount; i++) {
+            LoadClient client = new LoadClient("load" + i, "room" + (i / roomSize));
+            client.open();
+            clients.add(client);
+        }
+
+        // joins are asynchronous
+        TimeUnit.SECONDS.sleep(1);
+
+        System.out.printf("%d clients (%s) in rooms of %d started in %d ms%n", clientCount, transport, roomSize,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+
+    private void run() throws InterruptedException {
+
+        sending = true;
+        Thread sender = new Thread(this::send, "Sender");
+        sender.start();
+
+        Histogram delivery = null;
+        Histogram endToEnd = null;
+        long previousSent = 0;
+        long previousReceived = 0;
+
+        System.out.printf("%6s %10s %12s %10s %10s %10s%n", "sec", "sent/s", "delivered/s", "p50 ms", "p99 ms", "max ms");
+
+        if (warmup == 0) {
+            measureFrom = epochMicros();
+        }
+
+        for (int second = 1; second <= warmup + duration; second++) {
+
+            TimeUnit.SECONDS.sleep(1);
+
+            Histogram deliveryInterval = deliveryRecorder.getIntervalHistogram();
+            Histogram endToEndInterval = endToEndRecorder.getIntervalHistogram();
+
+            long sentNow = sent.sum();
+            long receivedNow = received.sum();
+
+            System.out.printf("%6s %10d %12d %10.3f %10.3f %10.3f%n",
+                second <= warmup ? "w" + second : Integer.toString(second - warmup),
+                sentNow - previousSent, receivedNow - previousReceived,
+                millis(endToEndInterval.getValueAtPercentile(50)),
+                millis(endToEndInterval.getValueAtPercentile(99)),
+                millis(endToEndInterval.getMaxValue()));
+
+            previousSent = sentNow;
+            previousReceived = receivedNow;
+
+            if (second == warmup) {
+                measureFrom = epochMicros();
+                sent.reset();
+                previousSent = 0;
+            }
+            else if (second > warmup) {
+                if (delivery == null) {
+                    delivery = deliveryInterval;
+                    endToEnd = endToEndInterval;
+                }
+                else {
+                    delivery.add(deliveryInterval);
+                    endToEnd.add(endToEndInterval);
+                }
+            }
+        }
+
+        sending = false;
+        sender.join();
+
+        // messages in flight
+        TimeUnit.SECONDS.sleep(1);
+
+        long sentTotal = sent.sum();
+        System.out.println();
+        System.out.printf("rate %d msg/s, sent %d (%.0f/s), delivered %d of %d expected (%.0f/s), errors %d%n",
+            rate, sentTotal, (double) sentTotal / duration,
+            delivered.sum(), sentTotal * roomSize, (double) delivered.sum() / duration, errors.sum());
+
+        System.out.printf("%-26s %10s %10s %10s %10s %10s%n", "latency, ms", "p50", "p90", "p99", "p99.9", "max");
+        print("delivery (server->client)", delivery);
+        print("end-to-end", endToEnd);
+    }
+
+
+    /**
+     * Runs in Sender thread, messages are spread over clients round-robin at fixed total rate
+     */
+    private void send() {
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long startNanos = System.nanoTime();
+        long startMicros = epochMicros();
+
+        for (long i = 0; sending; i++) {
+
+            long due = startNanos + i * interval;
+            long delay;
+            while ((delay = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+
+            // scheduled send time, not actual - latency includes time sender was behind
+            long scheduled = startMicros + (i * interval) / 1000;
+
+            LoadClient client = clients.get((int) (i % clientCount));
+            client.send(Long.toString(scheduled));
+            sent.increment();
+        }
+    }
+
+
+    private void stop() {
+
+        for (LoadClient client : clients) {
+            client.close();
+        }
+
+        if (inProcessServer != null) {
+            inProcessServer.shutdownNow();
+        }
+        if (chatServer != null) {
+            chatServer.stop();
+        }
+        if (chatService != null) {
+            chatService.preDestroy();
+            registry.preDestroy();
+            outboundExecutor.shutdown();
+            authExecutor.shutdown();
+        }
+        if (logDir != null) {
+            FileSystemUtils.deleteRecursively(logDir.toFile());
+        }
+    }
+
+
+    private ManagedChannel newChannel() {
+
+        if (inProcessServer != null) {
+            return InProcessChannelBuilder.forName(SERVER_NAME).build();
+        }
+        return NettyChannelBuilder.forAddress("localhost", chatServer.getPort()).usePlaintext().build();
+    }
+
+
+    private static long epochMicros() {
+        Instant now = Instant.now();
+        return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+    }
+
+
+    private static long micros(Timestamp timestamp) {
+        return TimeUnit.SECONDS.toMicros(timestamp.getSeconds()) + timestamp.getNanos() / 1000;
+    }
+
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+
+    private static void print(String name, Histogram histogram) {
+
+        if (histogram == null || histogram.getTotalCount() == 0) {
+            System.out.printf("%-26s no messages%n", name);
+            return;
+        }
+
+        System.out.printf("%-26s %10.3f %10.3f %10.3f %10.3f %10.3f%n", name,
+            millis(histogram.getValueAtPercentile(50)),
+            millis(histogram.getValueAtPercentile(90)),
+            millis(histogram.getValueAtPercentile(99)),
+            millis(histogram.getValueAtPercentile(99.9)),
+            millis(histogram.getMaxValue()));
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    /**
+     * One chat client: own channel, authenticated chat stream, member of one room
+     */
+    private class LoadClient implements StreamObserver<ServerMessage> {
+
+        private final String login;
+        private final String room;
+
+        private ManagedChannel channel;
+        private StreamObserver<ClientMessage> stream;
+
+        LoadClient(String login, String room) {
+            this.login = login;
+            this.room = room;
+        }
+
+
+        void open() {
+
+            channel = newChannel();
+
+            Metadata basic = new Metadata();
+            basic.put(METADATA_KEY_CLIENT_BASIC, login + ":1");
+            String token = MetadataUtils.attachHeaders(ChatServiceGrpc.newBlockingStub(channel), basic)
+                .authenticate(AuthRequest.getDefaultInstance())
+                .getToken();
+
+            Metadata headers = new Metadata();
+            headers.put(METADATA_KEY_CLIENT_TOKEN, token);
+            stream = MetadataUtils.attachHeaders(ChatServiceGrpc.newStub(channel), headers).chat(this);
+
+            stream.onNext(ClientMessage.newBuilder()
+                .setAction(ClientMessage.Action.JOIN)
+                .setRoom(room)
+                .build());
+        }
+
+
+        /**
+         * Sender thread only
+         */
+        void send(String text) {
+            stream.onNext(ClientMessage.newBuilder()
+                .setRoom(room)
+                .setMessage(text)
+                .build());
+        }
+
+
+        void close() {
+            if (channel != null) {
+                channel.shutdownNow();
+            }
+        }
+
+
+        @Override
+        public void onNext(ServerMessage message) {
+
+            // room messages of load clients only, not "entered the chat" and others
+            if (message.getRoom().isEmpty() || "server".equals(message.getFrom())) {
+                return;
+            }
+
+            long now = epochMicros();
+            long scheduled = Long.parseLong(message.getMessage());
+            deliveryRecorder.recordValue(Math.min(Math.max(now - micros(message.getTimestamp()), 0), MAX_LATENCY));
+            endToEndRecorder.recordValue(Math.min(Math.max(now - scheduled, 0), MAX_LATENCY));
+
+            received.increment();
+            if (scheduled >= measureFrom) {
+                delivered.increment();
+            }
+        }
+
+
+        @Override
+        public void onError(Throwable t) {
+            if (sending) {
+                errors.increment();
+            }
+        }
+
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -0,0 +1,220 @@
+package ru.home.grpc.chat.server.server;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import ru.home.grpc.chat.AuthRequest;
+import ru.home.grpc.chat.AuthResponse;
+import ru.home.grpc.chat.ChatServiceGrpc;
+import ru.home.grpc.chat.Ping;
+import ru.home.grpc.chat.server.cluster.LocalMessageBus;
+import ru.home.grpc.chat.server.configuration.KeepAliveProperties;
+import ru.home.grpc.chat.server.configuration.ThreadPoolTaskExecutorConfig;
+import ru.home.grpc.chat.server.metrics.MetricsInterceptor;
+import ru.home.grpc.chat.server.service.ChatService;
+import ru.home.grpc.chat.server.service.HeaderInterceptor;
+import ru.home.grpc.chat.server.service.MessageLog;
+import ru.home.grpc.chat.server.service.OpaqueTokenService;
+import ru.home.grpc.chat.server.service.RateLimiter;
+import ru.home.grpc.chat.server.service.RoomHistory;
+import ru.home.grpc.chat.server.service.SessionRegistry;
+import ru.home.grpc.chat.server.service.SlowConsumerPolicy;
+import ru.home.grpc.chat.server.utils.BoundedExecutor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLIENT_BASIC;
+
+/**
+ * Load test of server threading modes over loopback, 32 client threads
+ * <br> ping - non-blocking unary call, cost of executor hop (DIRECT runs it in event loop)
+ * <br> authenticate - password store blocking for 5 ms (remote user db),
+ * auth executor pool (cpu threads) vs virtual (thread per authentication, java 21+)
+ * <br> Run: main() from IDE or benchmarks.jar, select with -p mode=DIRECT -p authExecutor=virtual
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+@State(Scope.Benchmark)
+public class ExecutorModeBenchmark {
+
+    private static final int AUTH_LATENCY_MS = 5;
+
+    @Param({"DEFAULT", "FORK_JOIN", "DIRECT", "VIRTUAL"})
+    private ExecutorMode mode;
+
+    @Param({"pool", "virtual"})
+    private String authExecutor;
+
+    private SessionRegistry registry;
+    private ChatService chatService;
+    private ChatServer chatServer;
+    private Executor auth;
+    private Path logDir;
+    private ManagedChannel channel;
+
+    private ChatServiceGrpc.ChatServiceBlockingStub stub;
+    private ChatServiceGrpc.ChatServiceBlockingStub authStub;
+
+    private final Ping ping = Ping.newBuilder().build();
+
+
+    @Setup
+    public void setup() throws Exception {
+
+        // no spring context here, logback defaults to DEBUG
+        LoggingSystem.get(getClass().getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.INFO);
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 16);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 60);
+        registry.postConstruct();
+
+        OpaqueTokenService tokenService = new OpaqueTokenService();
+        tokenService.setRegistry(registry);
+
+        logDir = Files.createTempDirectory("bench-log");
+        RoomHistory roomHistory = new RoomHistory();
+        ReflectionTestUtils.setField(roomHistory, "size", 64);
+        roomHistory.postConstruct();
+        registry.setRoomHistory(roomHistory);
+
+        MessageLog messageLog = new MessageLog();
+        messageLog.setRoomHistory(roomHistory);
+        ReflectionTestUtils.setField(messageLog, "dir", logDir.toString());
+        ReflectionTestUtils.setField(messageLog, "segmentSize", 16 * 1024 * 1024);
+        ReflectionTestUtils.setField(messageLog, "maxSegments", 2);
+        messageLog.postConstruct();
+
+        auth = new ThreadPoolTaskExecutorConfig().authExecutor(authExecutor, 0, 10_000);
+        if (auth instanceof ThreadPoolTaskExecutor) {
+            ((ThreadPoolTaskExecutor) auth).initialize();
+        }
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
+        metricsInterceptor.setMeterRegistry(meterRegistry);
+
+        chatService = new ChatService();
+        chatService.setRegistry(registry);
+        chatService.setTokenService(tokenService);
+        chatService.setMessageBus(new LocalMessageBus());
+        chatService.setMeterRegistry(meterRegistry);
+        // fields not set - rate limits disabled
+        chatService.setRateLimiter(new RateLimiter());
+        chatService.setMessageLog(messageLog);
+        chatService.setRoomHistory(roomHistory);
+        chatService.setOutboundExecutor(Runnable::run);
+        chatService.setAuthExecutor(auth);
+        chatService.setAuthenticationService((login, password) -> {
+            try {
+                Thread.sleep(AUTH_LATENCY_MS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        });
+        ReflectionTestUtils.setField(chatService, "outboundCapacity", 1024);
+        ReflectionTestUtils.setField(chatService, "slowConsumerPolicy", SlowConsumerPolicy.DROP_OLDEST);
+        ReflectionTestUtils.setField(chatService, "batchMaxMessages", 64);
+        chatService.postConstruct();
+
+        HeaderInterceptor headerInterceptor = new HeaderInterceptor();
+        headerInterceptor.setTokenService(tokenService);
+        headerInterceptor.setMeterRegistry(meterRegistry);
+        headerInterceptor.postConstruct();
+
+        // limits not set - admission control disabled
+        ConnectionLimiter connectionLimiter = new ConnectionLimiter();
+        connectionLimiter.setMeterRegistry(meterRegistry);
+        connectionLimiter.postConstruct();
+        AdmissionInterceptor admissionInterceptor = new AdmissionInterceptor();
+        admissionInterceptor.setMeterRegistry(meterRegistry);
+        ReflectionTestUtils.setField(admissionInterceptor, "retryAfter", 1000L);
+        admissionInterceptor.postConstruct();
+
+        chatServer = new ChatServer();
+        chatServer.setChatService(chatService);
+        chatServer.setHeaderInterceptor(headerInterceptor);
+        chatServer.setMetricsInterceptor(metricsInterceptor);
+        chatServer.setConnectionLimiter(connectionLimiter);
+        chatServer.setAdmissionInterceptor(admissionInterceptor);
+        chatService.setAdmissionInterceptor(admissionInterceptor);
+        chatServer.setMeterRegistry(meterRegistry);
+        chatServer.setKeepAlive(new KeepAliveProperties());
+        chatServer.port = 0;
+        ReflectionTestUtils.setField(chatServer, "bossThreads", 1);
+        ReflectionTestUtils.setField(chatServer, "transportType", TransportType.AUTO);
+        ReflectionTestUtils.setField(chatServer, "allocator", "pooled");
+        ReflectionTestUtils.setField(chatServer, "tcpNoDelay", true);
+        ReflectionTestUtils.setField(chatServer, "writeBufferLow", 32 * 1024);
+        ReflectionTestUtils.setField(chatServer, "writeBufferHigh", 64 * 1024);
+        ReflectionTestUtils.setField(chatServer, "executorMode", mode);
+        chatServer.postConstruct();
+
+        channel = NettyChannelBuilder.forAddress("localhost", chatServer.getPort())
+            .usePlaintext()
+            .build();
+
+        stub = ChatServiceGrpc.newBlockingStub(channel);
+
+        Metadata headers = new Metadata();
+        headers.put(METADATA_KEY_CLIENT_BASIC, "bench:1");
+        authStub = MetadataUtils.attachHeaders(stub, headers);
+    }
+
+
+    @TearDown
+    public void tearDown() throws Exception {
+
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        chatServer.stop();
+        chatService.preDestroy();
+        registry.preDestroy();
+
+        if (auth instanceof ThreadPoolTaskExecutor) {
+            ((ThreadPoolTaskExecutor) auth).shutdown();
+        }
+        else {
+            ((BoundedExecutor) auth).shutdown();
+        }
+        FileSystemUtils.deleteRecursively(logDir);
+    }
+
+
+    @Benchmark
+    public Ping ping() {
+        return stub.ping(ping);
+    }
+
+
+    @Benchmark
+    public AuthResponse authenticate() {
+        return authStub.authenticate(AuthRequest.getDefaultInstance());
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ExecutorModeBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,115 @@
+package ru.home.grpc.chat.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.server.cluster.LocalMessageBus;
+import ru.home.grpc.chat.server.entities.Client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one room message to 10, 1k and 10k local subscribers
+ * <br> ChatService.broadcast - message bus, message log append, serialization once,
+ * offer to each member outbound queue, drained in caller thread to always ready transport
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    private int subscribers;
+
+    private SessionRegistry registry;
+    private ChatService chatService;
+    private MessageLog messageLog;
+    private Path logDir;
+
+    private final ServerMessage message =
+        ChatService.buildServerMessage(SessionRegistry.DEFAULT_ROOM, "bench", "hello");
+
+
+    @Setup
+    public void setup() throws Exception {
+
+        // no spring context here, logback defaults to DEBUG
+        LoggingSystem.get(getClass().getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.INFO);
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 16);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 60);
+        registry.postConstruct();
+
+        logDir = Files.createTempDirectory("bench-log");
+        RoomHistory roomHistory = new RoomHistory();
+        ReflectionTestUtils.setField(roomHistory, "size", 64);
+        roomHistory.postConstruct();
+        registry.setRoomHistory(roomHistory);
+
+        messageLog = new MessageLog();
+        messageLog.setRoomHistory(roomHistory);
+        ReflectionTestUtils.setField(messageLog, "dir", logDir.toString());
+        ReflectionTestUtils.setField(messageLog, "segmentSize", 16 * 1024 * 1024);
+        ReflectionTestUtils.setField(messageLog, "maxSegments", 2);
+        messageLog.postConstruct();
+
+        chatService = new ChatService();
+        chatService.setRegistry(registry);
+        chatService.setMessageBus(new LocalMessageBus());
+        chatService.setMessageLog(messageLog);
+        chatService.setRoomHistory(roomHistory);
+        chatService.setOutboundExecutor(Runnable::run);
+        chatService.setMeterRegistry(new SimpleMeterRegistry());
+        // fields not set - rate limits disabled
+        chatService.setRateLimiter(new RateLimiter());
+        ReflectionTestUtils.setField(chatService, "batchMaxMessages", 64);
+        chatService.postConstruct();
+
+        // subscribers as chat streams have them, without "entered the chat" broadcast per stream
+        for (int i = 0; i < subscribers; i++) {
+
+            Client client = new Client("user" + i, "token" + i);
+            registry.add(client);
+            registry.bind(client);
+
+            client.setOutbound(new OutboundQueue(new DiscardObserver(), Runnable::run,
+                1024, SlowConsumerPolicy.DROP_OLDEST, () -> {}));
+            registry.join(SessionRegistry.DEFAULT_ROOM, client);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        chatService.preDestroy();
+        registry.preDestroy();
+        FileSystemUtils.deleteRecursively(logDir);
+    }
+
+
+    @Benchmark
+    public void broadcast() {
+        chatService.broadcast(message);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(BroadcastBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
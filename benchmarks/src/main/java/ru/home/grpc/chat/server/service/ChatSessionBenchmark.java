@@ -0,0 +1,137 @@
+package ru.home.grpc.chat.server.service;
+
+import io.grpc.Context;
+import io.grpc.stub.StreamObserver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.ClientMessage;
+import ru.home.grpc.chat.server.cluster.LocalMessageBus;
+import ru.home.grpc.chat.server.entities.Client;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static ru.home.grpc.chat.server.utils.Headers.CLIENT_CONTEXT_KEY;
+
+/**
+ * Per-message cost of inbound chat stream
+ * <br> resolvedOnce - current Session (client captured once per stream)
+ * <br> resolvedPerMessage - same plus Context/registry lookup and Assert per message,
+ * as it was done by getClient() in each onNext()
+ * <br> Run: main() from IDE or benchmarks.jar
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChatSessionBenchmark {
+
+    private SessionRegistry registry;
+    private ChatService chatService;
+    private MessageLog messageLog;
+    private Path logDir;
+    private Client client;
+    private Context context;
+    private StreamObserver<ClientMessage> session;
+
+    private final ClientMessage message = ClientMessage.newBuilder()
+        .setRoom(SessionRegistry.DEFAULT_ROOM)
+        .setMessage("hello")
+        .build();
+
+
+    @Setup
+    public void setup() throws Exception {
+
+        // no spring context here, logback defaults to DEBUG
+        LoggingSystem.get(getClass().getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.INFO);
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 16);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 60);
+        registry.postConstruct();
+
+        logDir = Files.createTempDirectory("bench-log");
+        RoomHistory roomHistory = new RoomHistory();
+        ReflectionTestUtils.setField(roomHistory, "size", 64);
+        roomHistory.postConstruct();
+        registry.setRoomHistory(roomHistory);
+
+        messageLog = new MessageLog();
+        messageLog.setRoomHistory(roomHistory);
+        ReflectionTestUtils.setField(messageLog, "dir", logDir.toString());
+        ReflectionTestUtils.setField(messageLog, "segmentSize", 16 * 1024 * 1024);
+        ReflectionTestUtils.setField(messageLog, "maxSegments", 2);
+        messageLog.postConstruct();
+
+        chatService = new ChatService();
+        chatService.setRegistry(registry);
+        chatService.setMessageBus(new LocalMessageBus());
+        chatService.setMessageLog(messageLog);
+        chatService.setRoomHistory(roomHistory);
+        chatService.setOutboundExecutor(Runnable::run);
+        chatService.setMeterRegistry(new SimpleMeterRegistry());
+        // fields not set - rate limits disabled
+        chatService.setRateLimiter(new RateLimiter());
+        ReflectionTestUtils.setField(chatService, "outboundCapacity", 1024);
+        ReflectionTestUtils.setField(chatService, "slowConsumerPolicy", SlowConsumerPolicy.DROP_OLDEST);
+        ReflectionTestUtils.setField(chatService, "batchMaxMessages", 64);
+        chatService.postConstruct();
+
+        client = new Client("bench", "token");
+        registry.add(client);
+
+        context = Context.current().withValue(CLIENT_CONTEXT_KEY, client);
+        session = context.call(() -> chatService.serializedChat(new DiscardObserver()));
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        session.onCompleted();
+        chatService.preDestroy();
+        registry.preDestroy();
+        FileSystemUtils.deleteRecursively(logDir);
+    }
+
+
+    @Benchmark
+    public void resolvedOnce() {
+        session.onNext(message);
+    }
+
+
+    @Benchmark
+    public Client resolvedPerMessage() {
+
+        Context previous = context.attach();
+        try {
+            Client resolved = registry.get(CLIENT_CONTEXT_KEY.get().getToken());
+            Assert.notNull(resolved, "client == null");
+            session.onNext(message);
+            return resolved;
+        }
+        finally {
+            context.detach(previous);
+        }
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ChatSessionBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,21 @@
+package ru.home.grpc.chat.server.service;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+/**
+ * Always ready transport that drops everything
+ */
+class DiscardObserver extends ServerCallStreamObserver<SerializedMessage> {
+
+    @Override public boolean isCancelled() { return false; }
+    @Override public void setOnCancelHandler(Runnable onCancelHandler) {}
+    @Override public void setCompression(String compression) {}
+    @Override public boolean isReady() { return true; }
+    @Override public void setOnReadyHandler(Runnable onReadyHandler) {}
+    @Override public void disableAutoInboundFlowControl() {}
+    @Override public void request(int count) {}
+    @Override public void setMessageCompression(boolean enable) {}
+    @Override public void onNext(SerializedMessage value) {}
+    @Override public void onError(Throwable t) {}
+    @Override public void onCompleted() {}
+}
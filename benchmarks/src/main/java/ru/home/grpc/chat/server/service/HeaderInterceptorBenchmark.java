@@ -0,0 +1,158 @@
+package ru.home.grpc.chat.server.service;
+
+import io.grpc.Attributes;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.Status;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.home.grpc.chat.ChatServiceGrpc;
+import ru.home.grpc.chat.server.entities.Client;
+import ru.home.grpc.chat.server.utils.Credentials;
+
+import java.util.concurrent.TimeUnit;
+
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLIENT_BASIC;
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLIENT_TOKEN;
+
+/**
+ * Per-call authentication cost, HeaderInterceptor.interceptCall with in-process fake call
+ * <br> token - chat call with valid token (registry lookup)
+ * <br> basic - authenticate call with login/password header (password is checked later, off grpc threads)
+ * <br> ping - no authentication
+ * <br> rejected - unknown token, call closed with UNAUTHENTICATED
+ * <br> credentials - Credentials.getCredentials, basic header parsing
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HeaderInterceptorBenchmark {
+
+    private static final ServerCall.Listener<Object> LISTENER = new ServerCall.Listener<Object>() {};
+
+    private SessionRegistry registry;
+    private HeaderInterceptor interceptor;
+
+    private final ServerCallHandler<Object, Object> handler = (call, headers) -> LISTENER;
+
+    private FakeCall chatCall;
+    private FakeCall authenticateCall;
+    private FakeCall pingCall;
+
+    private final Metadata tokenHeaders = new Metadata();
+    private final Metadata basicHeaders = new Metadata();
+    private final Metadata wrongTokenHeaders = new Metadata();
+    private final Metadata emptyHeaders = new Metadata();
+
+
+    @Setup
+    public void setup() {
+
+        // no spring context here, logback defaults to DEBUG
+        LoggingSystem.get(getClass().getClassLoader()).setLogLevel(LoggingSystem.ROOT_LOGGER_NAME, LogLevel.INFO);
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 16);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 60);
+        registry.postConstruct();
+
+        Client client = new Client("bench", "token");
+        registry.add(client);
+        registry.bind(client);
+
+        OpaqueTokenService tokenService = new OpaqueTokenService();
+        tokenService.setRegistry(registry);
+
+        interceptor = new HeaderInterceptor();
+        interceptor.setTokenService(tokenService);
+        interceptor.setMeterRegistry(new SimpleMeterRegistry());
+        interceptor.postConstruct();
+
+        chatCall = new FakeCall(ChatServiceGrpc.getChatMethod());
+        authenticateCall = new FakeCall(ChatServiceGrpc.getAuthenticateMethod());
+        pingCall = new FakeCall(ChatServiceGrpc.getPingMethod());
+
+        tokenHeaders.put(METADATA_KEY_CLIENT_TOKEN, "token");
+        basicHeaders.put(METADATA_KEY_CLIENT_BASIC, "bench:password");
+        wrongTokenHeaders.put(METADATA_KEY_CLIENT_TOKEN, "wrong");
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        registry.preDestroy();
+    }
+
+
+    @Benchmark
+    public ServerCall.Listener<Object> token() {
+        return interceptor.interceptCall(chatCall, tokenHeaders, handler);
+    }
+
+
+    @Benchmark
+    public ServerCall.Listener<Object> basic() {
+        return interceptor.interceptCall(authenticateCall, basicHeaders, handler);
+    }
+
+
+    @Benchmark
+    public ServerCall.Listener<Object> ping() {
+        return interceptor.interceptCall(pingCall, emptyHeaders, handler);
+    }
+
+
+    @Benchmark
+    public ServerCall.Listener<Object> rejected() {
+        return interceptor.interceptCall(chatCall, wrongTokenHeaders, handler);
+    }
+
+
+    @Benchmark
+    public Credentials credentials() {
+        return Credentials.getCredentials(basicHeaders);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(HeaderInterceptorBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    /**
+     * Call of given method, ignores everything
+     */
+    private static class FakeCall extends ServerCall<Object, Object> {
+
+        private final MethodDescriptor<Object, Object> method;
+
+        @SuppressWarnings("unchecked")
+        FakeCall(MethodDescriptor<?, ?> method) {
+            this.method = (MethodDescriptor<Object, Object>) method;
+        }
+
+        @Override public void request(int numMessages) {}
+        @Override public void sendHeaders(Metadata headers) {}
+        @Override public void sendMessage(Object message) {}
+        @Override public void close(Status status, Metadata trailers) {}
+        @Override public boolean isCancelled() { return false; }
+        @Override public Attributes getAttributes() { return Attributes.EMPTY; }
+        @Override public MethodDescriptor<Object, Object> getMethodDescriptor() { return method; }
+    }
+}
@@ -0,0 +1,45 @@
+package ru.home.grpc.chat.server.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.home.grpc.chat.ServerMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building one outgoing message
+ * <br> build - ChatService.buildServerMessage (protobuf builder, timestamp)
+ * <br> serialize - SerializedMessage.of, done once per message for all recipients
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerMessageBenchmark {
+
+    private final ServerMessage message =
+        ChatService.buildServerMessage("room", "bench", "hello, this is a typical chat message");
+
+
+    @Benchmark
+    public ServerMessage build() {
+        return ChatService.buildServerMessage("room", "bench", "hello, this is a typical chat message");
+    }
+
+
+    @Benchmark
+    public SerializedMessage serialize() {
+        return SerializedMessage.of(message);
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(ServerMessageBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
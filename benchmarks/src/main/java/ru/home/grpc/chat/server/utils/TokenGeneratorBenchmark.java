@@ -0,0 +1,92 @@
+package ru.home.grpc.chat.server.utils;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
+
+/**
+ * Tokens (authentications) per second at 1, 8 and 32 threads
+ * <br> generator* - TokenGenerator
+ * <br> legacy* - previous SHA-256 over concatenated strings with shared NativePRNG
+ * <br> Run: main() from IDE or benchmarks.jar
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenGeneratorBenchmark {
+
+    private SecureRandom secureRandom;
+
+    private final AtomicLong idAtomic = new AtomicLong();
+
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        secureRandom = SecureRandom.getInstance("NativePRNG");
+    }
+
+
+    @Benchmark @Threads(1)
+    public String generator1() {
+        return TokenGenerator.generate();
+    }
+
+    @Benchmark @Threads(8)
+    public String generator8() {
+        return TokenGenerator.generate();
+    }
+
+    @Benchmark @Threads(32)
+    public String generator32() {
+        return TokenGenerator.generate();
+    }
+
+
+    @Benchmark @Threads(1)
+    public String legacy1() {
+        return legacyToken();
+    }
+
+    @Benchmark @Threads(8)
+    public String legacy8() {
+        return legacyToken();
+    }
+
+    @Benchmark @Threads(32)
+    public String legacy32() {
+        return legacyToken();
+    }
+
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(TokenGeneratorBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private String legacyToken() {
+
+        String id = Long.toString(idAtomic.getAndIncrement()) +
+                    Long.toString(Instant.now().toEpochMilli()) +
+                    Long.toString(secureRandom.nextLong());
+
+        return new DigestUtils(SHA_256).digestAsHex(id);
+    }
+}
@@ -0,0 +1,50 @@
+package ru.home.grpc.chat.client.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Channel keepalive (grpc.client.keepalive.*)
+ * <br> time should not be less than server grpc.server.keepalive.permit-time,
+ * or server closes connection (GOAWAY too_many_pings)
+ */
+@Component
+@ConfigurationProperties(prefix = "grpc.client.keepalive")
+public class KeepAliveProperties {
+
+    // ping server if nothing is received for time, grpc raises it to at least 10s
+    private Duration time = Duration.ofSeconds(10);
+
+    // connection is considered broken if ping is not answered
+    private Duration timeout = Duration.ofSeconds(20);
+
+    // ping also when there are no calls (not authenticated yet)
+    private boolean withoutCalls = true;
+
+
+    public Duration getTime() {
+        return time;
+    }
+
+    public void setTime(Duration time) {
+        this.time = time;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isWithoutCalls() {
+        return withoutCalls;
+    }
+
+    public void setWithoutCalls(boolean withoutCalls) {
+        this.withoutCalls = withoutCalls;
+    }
+}
@@ -18,18 +18,25 @@ package ru.home.grpc.chat.client.service;
 
 import io.grpc.*;
 
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.MetadataUtils;
 import io.grpc.stub.StreamObserver;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import ru.home.grpc.chat.*;
+import ru.home.grpc.chat.client.configuration.KeepAliveProperties;
 import ru.home.grpc.chat.client.shell.commands.ClientEvents;
 
 import java.lang.invoke.MethodHandles;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -49,16 +56,22 @@ public class ChatClient {
     private static final String CLIENT_TOKEN = "token_auth";
 
     public static final int DEADLINE_DURATION = 5*100;
-    public static final int KEEP_ALIVE_TIME = 10;
-    public static final int KEEP_ALIVE_TIMEOUT = 20;
 
     public static final String DEFAULT_PORT = "8090";
 
+    // all connected clients are in this room
+    public static final String DEFAULT_ROOM = "";
+
+    // ServerMessage.seq high bits - id of server message log (see server MessageLog)
+    private static final int SEQ_LOG_ID_SHIFT = 48;
+
     private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
 
     private ClientEvents clientEvents;
 
+    private KeepAliveProperties keepAlive;
+
     private ManagedChannel channel;
     private ConnectivityState currentState = ConnectivityState.SHUTDOWN;
     private ConnectivityState previousState = ConnectivityState.SHUTDOWN;
@@ -70,7 +83,26 @@ public class ChatClient {
     // with token auth
     private ChatServiceGrpc.ChatServiceStub asyncStub;
 
-    private StreamObserver<ClientMessage> chatObserver;
+    // outgoing messages of current chat stream
+    private SendQueue<?> sendQueue;
+
+    // joined rooms, will be re-joined after reconnect
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    // last received ServerMessage.seq, messages after it are replayed on reconnect
+    private volatile long lastSeq;
+
+    // use chatBatch stream if server supports it
+    @Value("${grpc.client.batch:true}")
+    private boolean batch;
+
+    // messages waiting until chat stream is ready to send them
+    @Value("${grpc.client.send.queue-capacity:256}")
+    private int sendCapacity;
+
+    // max messages in one ClientMessageBatch
+    @Value("${grpc.client.send.max-batch:64}")
+    private int sendMaxBatch;
 
     private String login;
     private String password;
@@ -91,6 +123,11 @@ public class ChatClient {
         this.clientEvents = clientEvents;
     }
 
+    @Autowired
+    public void setKeepAlive(KeepAliveProperties keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
 
     public void init(String host, int port, String login, String password) {
 
@@ -98,6 +135,9 @@ public class ChatClient {
         this.password = password;
         this.host = host;
         this.port = port;
+
+        rooms.clear();
+        lastSeq = 0;
     }
 
 
@@ -164,23 +204,37 @@ public class ChatClient {
             // Prepare to async chatting -----------------------------------------------------------------------------
 
 
-            chatObserver = asyncStub.chat(new StreamObserver<ServerMessage>() {
+            // previous stream is gone
+            if (sendQueue != null) {
+                sendQueue.close(null);
+            }
 
-                @Override
-                public void onNext(ServerMessage reply) {
-                    clientEvents.onMessage(reply);
-                }
+            // server advertises batch mode in AuthResponse (older servers do not)
+            if (batch && response.getBatch()) {
+                log.debug("Using batch mode");
+                SendQueue<ClientMessageBatch> queue = new SendQueue<>(sendCapacity, sendMaxBatch,
+                    messages -> ClientMessageBatch.newBuilder().addAllMessages(messages).build());
+                asyncStub.chatBatch(new BatchObserver(queue));
+                sendQueue = queue;
+            }
+            else {
+                SendQueue<ClientMessage> queue = new SendQueue<>(sendCapacity, 1, messages -> messages.get(0));
+                asyncStub.chat(new ChatObserver(queue));
+                sendQueue = queue;
+            }
 
-                @Override
-                public void onError(Throwable t) {
-                    log.debug("gRPC error", t);
-                    clientEvents.onError(t);
-                }
+            // server forget rooms on disconnect
+            for (String room : rooms) {
+                sendQueue.send(buildRoomAction(ClientMessage.Action.JOIN, room));
+            }
 
-                @Override
-                public void onCompleted() {
-                }
-            });
+            // get messages missed while reconnecting (after rooms are joined)
+            if (lastSeq > 0) {
+                sendQueue.send(ClientMessage.newBuilder()
+                    .setAction(ClientMessage.Action.RESUME)
+                    .setSeq(lastSeq)
+                    .build());
+            }
 
             // set on only after all commands performed
             // or will get racing with onStateChanged()
@@ -205,20 +259,103 @@ public class ChatClient {
 
 
 
-    public void sendMessage(String message) {
+    /**
+     * Send message to default room
+     */
+    public CompletableFuture<Void> sendMessage(String message) {
+        return sendMessage(DEFAULT_ROOM, message);
+    }
+
+
+    /**
+     * Non-blocking, thread-safe
+     * @return future completed when message is passed to transport,
+     * failed if send queue is full (RejectedExecutionException) or chat stream is closed
+     */
+    public CompletableFuture<Void> sendMessage(String room, String message) {
 
         if (StringUtils.isBlank(message)) {
-            return;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Assert.notNull(sendQueue, "sendQueue == null");
+
+        return sendQueue.send(ClientMessage.newBuilder()
+            .setRoom(room)
+            .setMessage(message)
+            .build());
+    }
+
+
+    /**
+     * Private message to all chat streams of login
+     */
+    public CompletableFuture<Void> sendDirect(String to, String message) {
+
+        if (StringUtils.isBlank(message)) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        Assert.notNull(chatObserver, "chatObserver == null");
+        Assert.notNull(sendQueue, "sendQueue == null");
 
-        chatObserver.onNext(ClientMessage.newBuilder()
+        return sendQueue.send(ClientMessage.newBuilder()
+            .setAction(ClientMessage.Action.DIRECT)
+            .setTo(to)
             .setMessage(message)
             .build());
     }
 
 
+    public void joinRoom(String room) {
+
+        Assert.notNull(sendQueue, "sendQueue == null");
+
+        rooms.add(room);
+        sendQueue.send(buildRoomAction(ClientMessage.Action.JOIN, room));
+    }
+
+
+    /**
+     * Request recent messages of room, they will be delivered to ClientEvents.onMessage()
+     * @param limit max messages, 0 - all kept by server
+     */
+    public void requestHistory(String room, int limit) {
+
+        Assert.notNull(asyncStub, "asyncStub == null");
+
+        HistoryRequest request = HistoryRequest.newBuilder()
+            .setRoom(room)
+            .setLimit(limit)
+            .build();
+
+        asyncStub.withDeadlineAfter(DEADLINE_DURATION, TimeUnit.SECONDS).history(request, new StreamObserver<ServerMessage>() {
+
+            @Override
+            public void onNext(ServerMessage message) {
+                clientEvents.onMessage(message);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.debug("History request failed", t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+
+
+    public void leaveRoom(String room) {
+
+        Assert.notNull(sendQueue, "sendQueue == null");
+
+        rooms.remove(room);
+        sendQueue.send(buildRoomAction(ClientMessage.Action.LEAVE, room));
+    }
+
+
     public void shutdownNow() {
 
         log.debug("Shutdown called");
@@ -387,6 +524,98 @@ public class ChatClient {
     }
 
 
+    /**
+     * Receives server messages of chat stream, attaches send queue to request stream
+     */
+    private class ChatObserver implements ClientResponseObserver<ClientMessage, ServerMessage> {
+
+        private final SendQueue<ClientMessage> queue;
+
+        ChatObserver(SendQueue<ClientMessage> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ClientMessage> requestStream) {
+            queue.beforeStart(requestStream);
+        }
+
+        @Override
+        public void onNext(ServerMessage reply) {
+            receive(reply);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            queue.close(t);
+            log.debug("gRPC error", t);
+            clientEvents.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            queue.close(null);
+        }
+    }
+
+
+    /**
+     * Receives server messages of chatBatch stream, unpacks batches
+     */
+    private class BatchObserver implements ClientResponseObserver<ClientMessageBatch, ServerMessageBatch> {
+
+        private final SendQueue<ClientMessageBatch> queue;
+
+        BatchObserver(SendQueue<ClientMessageBatch> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ClientMessageBatch> requestStream) {
+            queue.beforeStart(requestStream);
+        }
+
+        @Override
+        public void onNext(ServerMessageBatch batch) {
+            for (ServerMessage reply : batch.getMessagesList()) {
+                receive(reply);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            queue.close(t);
+            log.debug("gRPC error", t);
+            clientEvents.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            queue.close(null);
+        }
+    }
+
+
+    private void receive(ServerMessage reply) {
+
+        // seqs of other server (reconnected to other cluster node) are not comparable with current one
+        long seq = reply.getSeq();
+        if (seq > lastSeq || seq != 0 && seq >>> SEQ_LOG_ID_SHIFT != lastSeq >>> SEQ_LOG_ID_SHIFT) {
+            lastSeq = seq;
+        }
+        clientEvents.onMessage(reply);
+    }
+
+
+    private ClientMessage buildRoomAction(ClientMessage.Action action, String room) {
+
+        return ClientMessage.newBuilder()
+            .setAction(action)
+            .setRoom(room)
+            .build();
+    }
+
+
     // Rebuild if needed
     private void buildChannel() {
 
@@ -398,9 +627,9 @@ public class ChatClient {
             // with TLS DO NOT usePlaintext()
 
             channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext()
-                .keepAliveTime(KEEP_ALIVE_TIME, TimeUnit.SECONDS)
-                .keepAliveTimeout(KEEP_ALIVE_TIMEOUT, TimeUnit.SECONDS)
-                .keepAliveWithoutCalls(true)
+                .keepAliveTime(keepAlive.getTime().toNanos(), TimeUnit.NANOSECONDS)
+                .keepAliveTimeout(keepAlive.getTimeout().toNanos(), TimeUnit.NANOSECONDS)
+                .keepAliveWithoutCalls(keepAlive.isWithoutCalls())
                 .build();
 
             // setup callbacks on channel currentState changes
@@ -0,0 +1,180 @@
+package ru.home.grpc.chat.client.service;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.home.grpc.chat.ClientMessage;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Bounded queue of outgoing chat messages, one per chat stream
+ * <br> Any thread may send, queue is drained by one writer at a time
+ * (thread that found it idle or grpc onReady callback), so StreamObserver.onNext() is never called concurrently
+ * <br> Messages are passed to grpc only while call is ready, burst of queued messages
+ * is framed as one stream message (ClientMessageBatch on chatBatch stream)
+ * <br> Each send returns future: completed when message has been passed to grpc,
+ * failed at once if queue is full (back-pressure) or stream is closed
+ * @param <T> stream message type
+ */
+public class SendQueue<T> implements Runnable {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final BlockingQueue<Pending> queue;
+
+    // max messages in one frame
+    private final int maxBatch;
+
+    // builds stream message from queued messages
+    private final Function<List<ClientMessage>, T> framer;
+
+    // drain requests counter, writer is running while wip > 0
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile ClientCallStreamObserver<T> stream;
+
+    private volatile Throwable closed;
+
+    public SendQueue(int capacity, int maxBatch, Function<List<ClientMessage>, T> framer) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.framer = framer;
+    }
+
+
+    /**
+     * Attach to request stream, should be called from ClientResponseObserver.beforeStart()
+     */
+    public void beforeStart(ClientCallStreamObserver<T> stream) {
+
+        this.stream = stream;
+        stream.setOnReadyHandler(this::drain);
+    }
+
+
+    /**
+     * Non-blocking enqueue
+     * @return future completed when message is passed to grpc
+     */
+    public CompletableFuture<Void> send(ClientMessage message) {
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        if (closed != null) {
+            result.completeExceptionally(closed);
+            return result;
+        }
+
+        if (!queue.offer(new Pending(message, result))) {
+            result.completeExceptionally(new RejectedExecutionException("Send queue is full"));
+            return result;
+        }
+
+        drain();
+        return result;
+    }
+
+
+    /**
+     * Fail all pending and further sends
+     */
+    public void close(Throwable cause) {
+
+        closed = cause != null ? cause : Status.CANCELLED.withDescription("Chat stream closed").asRuntimeException();
+        drain();
+    }
+
+
+    public int size() {
+        return queue.size();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private void drain() {
+
+        if (wip.getAndIncrement() == 0) {
+            run();
+        }
+    }
+
+
+    /**
+     * Write queued messages while stream is ready
+     */
+    @Override
+    public void run() {
+
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        List<ClientMessage> messages = new ArrayList<>(maxBatch);
+
+        int missed = 1;
+        do {
+            ClientCallStreamObserver<T> stream = this.stream;
+
+            if (closed != null) {
+                failAll();
+            }
+            else if (stream != null) {
+
+                while (closed == null && stream.isReady() && queue.drainTo(batch, maxBatch) > 0) {
+                    for (Pending pending : batch) {
+                        messages.add(pending.message);
+                    }
+                    try {
+                        stream.onNext(framer.apply(messages));
+                        for (Pending pending : batch) {
+                            pending.future.complete(null);
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        // call has been cancelled/closed
+                        log.debug("Failed to send message", e);
+                        for (Pending pending : batch) {
+                            pending.future.completeExceptionally(e);
+                        }
+                        closed = e;
+                    }
+                    batch.clear();
+                    messages.clear();
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+
+    private void failAll() {
+
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.future.completeExceptionally(closed);
+        }
+    }
+
+
+    private static final class Pending {
+
+        final ClientMessage message;
+        final CompletableFuture<Void> future;
+
+        Pending(ClientMessage message, CompletableFuture<Void> future) {
+            this.message = message;
+            this.future = future;
+        }
+    }
+}
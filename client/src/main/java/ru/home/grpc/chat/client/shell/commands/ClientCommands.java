@@ -24,6 +24,7 @@ import java.net.URI;
 import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 @ShellComponent
@@ -31,6 +32,13 @@ public class ClientCommands implements ClientEvents {
 
     private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+    private static final String JOIN_COMMAND = "/join";
+    private static final String LEAVE_COMMAND = "/leave";
+    private static final String DIRECT_COMMAND = "/msg";
+
+    // messages shown on join
+    private static final int HISTORY_SIZE = 20;
+
     private ShellHelper shellHelper;
     private InputReader inputReader;
     private ChatClient client;
@@ -40,6 +48,9 @@ public class ClientCommands implements ClientEvents {
 
     private boolean interrupted;
 
+    // messages are sent to this room
+    private String currentRoom = ChatClient.DEFAULT_ROOM;
+
 
     @Autowired
     public void setShellHelper(ShellHelper shellHelper) {
@@ -138,11 +149,11 @@ public class ClientCommands implements ClientEvents {
 
                     if(undelivered.length() > 0) {
                         // send undelivered messages
-                        client.sendMessage(undelivered.toString());
+                        reportFailure(client.sendMessage(currentRoom, undelivered.toString()));
                         undelivered.setLength(0);
                     }
                     // send current message
-                    client.sendMessage(message);
+                    processInput(message);
                 }
                 else {
                     // keep undelivered message
@@ -178,9 +189,56 @@ public class ClientCommands implements ClientEvents {
 //    }
 
 
+    /**
+     * "/join room" - join room, show its recent messages and send next messages there
+     * <br>"/leave room" - leave room
+     * <br>"/msg login text" - private message
+     * <br> otherwise - send message to current room
+     */
+    private void processInput(String input) {
+
+        String[] command = input.trim().split("\\s+", 2);
+        String[] direct = input.trim().split("\\s+", 3);
+
+        if (command.length == 2 && JOIN_COMMAND.equals(command[0])) {
+            client.joinRoom(command[1]);
+            client.requestHistory(command[1], HISTORY_SIZE);
+            currentRoom = command[1];
+        }
+        else if (command.length == 2 && LEAVE_COMMAND.equals(command[0])) {
+            client.leaveRoom(command[1]);
+            if (command[1].equals(currentRoom)) {
+                currentRoom = ChatClient.DEFAULT_ROOM;
+            }
+        }
+        else if (direct.length == 3 && DIRECT_COMMAND.equals(direct[0])) {
+            reportFailure(client.sendDirect(direct[1], direct[2]));
+        }
+        else {
+            reportFailure(client.sendMessage(currentRoom, input));
+        }
+    }
+
+
+    /**
+     * Message was not sent (send queue is full or chat stream closed)
+     */
+    private void reportFailure(CompletableFuture<Void> sent) {
+
+        sent.whenComplete((result, t) -> {
+            if (t != null) {
+                shellHelper.printError("Message not sent: " + t.getMessage());
+            }
+        });
+    }
+
+
     @Override
     public void onMessage(ServerMessage message)  {
-        System.out.println(message.getFrom() + ": " + message.getMessage());
+
+        String room = StringUtils.isEmpty(message.getRoom()) ? "" : "[" + message.getRoom() + "] ";
+        String to = StringUtils.isEmpty(message.getTo()) ? "" : " -> " + message.getTo();
+        System.out.println(room + message.getFrom() + to + ": " + message.getMessage());
     }
 
 
@@ -0,0 +1,56 @@
+package ru.home.grpc.chat.server.cluster;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLUSTER_SECRET;
+
+/**
+ * Accept server to server calls having cluster secret header
+ */
+public class ClusterAuthInterceptor implements ServerInterceptor {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final byte[] secret;
+
+    ClusterAuthInterceptor(String secret) {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+
+        if (verify(secret, headers)) {
+            return next.startCall(call, headers);
+        }
+
+        log.debug("Peer not authenticated");
+        call.close(Status.UNAUTHENTICATED.withDescription("Not authenticated"), new Metadata());
+        return new ServerCall.Listener<ReqT>() {};
+    }
+
+
+    /**
+     * @return headers contain cluster secret
+     */
+    public static boolean verify(byte[] secret, Metadata headers) {
+
+        String value = headers.get(METADATA_KEY_CLUSTER_SECRET);
+
+        // constant time compare
+        return value != null && MessageDigest.isEqual(secret, value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,65 @@
+package ru.home.grpc.chat.server.cluster;
+
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ru.home.grpc.chat.BusMessage;
+import ru.home.grpc.chat.ClusterServiceGrpc;
+import ru.home.grpc.chat.PublishAck;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Server to server rpc, receives messages published by peer nodes
+ */
+@Service
+@ConditionalOnProperty(name = "grpc.server.cluster.bus", havingValue = "peer")
+public class ClusterService extends ClusterServiceGrpc.ClusterServiceImplBase {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private PeerMessageBus messageBus;
+
+    @Autowired
+    public void setMessageBus(PeerMessageBus messageBus) {
+        this.messageBus = messageBus;
+    }
+
+
+    /**
+     * Service definition accessible only with cluster secret
+     * <br> Use it instead of bindService()
+     */
+    public ServerServiceDefinition bindSecuredService() {
+        return ServerInterceptors.intercept(bindService(), new ClusterAuthInterceptor(messageBus.getSecret()));
+    }
+
+
+    @Override
+    public StreamObserver<BusMessage> publish(StreamObserver<PublishAck> responseObserver) {
+
+        return new StreamObserver<BusMessage>() {
+
+            @Override
+            public void onNext(BusMessage message) {
+                messageBus.receive(message);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.debug("Peer stream failed", t);
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onNext(PublishAck.getDefaultInstance());
+                responseObserver.onCompleted();
+            }
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package ru.home.grpc.chat.server.cluster;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring of nodes, key is owned by first node point clockwise from key hash
+ * <br> Each node has virtualNodes points on ring, so keys are spread evenly
+ * and adding/removing node moves only about 1/N of keys
+ */
+final class ConsistentHashRing {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final Set<String> nodes;
+
+    // sorted points and their owners
+    private final long[] points;
+    private final String[] owners;
+
+    ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+
+        Assert.notEmpty(nodes, "ring should have nodes");
+        Assert.isTrue(virtualNodes > 0, "virtual-nodes should be > 0");
+
+        // sorted, so ring do not depend on iteration order (same on all nodes)
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+
+        int size = this.nodes.size() * virtualNodes;
+        long[] hashes = new long[size];
+        String[] names = new String[size];
+
+        int i = 0;
+        for (String node : this.nodes) {
+            for (int v = 0; v < virtualNodes; v++) {
+                hashes[i] = hash(node + "#" + v);
+                names[i] = node;
+                i++;
+            }
+        }
+
+        // sort points, keeping owners in step
+        Integer[] order = new Integer[size];
+        for (i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+
+        points = new long[size];
+        owners = new String[size];
+        for (i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = names[order[i]];
+        }
+    }
+
+
+    /**
+     * @return node owning key
+     */
+    String owner(String key) {
+
+        int i = Arrays.binarySearch(points, hash(key));
+        if (i < 0) {
+            // insertion point - first point greater than hash
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+
+    Set<String> getNodes() {
+        return nodes;
+    }
+
+
+    private static long hash(String value) {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,42 @@
+package ru.home.grpc.chat.server.cluster;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.home.grpc.chat.Ping;
+import ru.home.grpc.chat.ServerMessage;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Single node, messages are delivered to subscribers in publisher thread
+ */
+@Component
+@ConditionalOnProperty(name = "grpc.server.cluster.bus", havingValue = "local", matchIfMissing = true)
+public class LocalMessageBus implements MessageBus {
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(ServerMessage message) {
+
+        for (Subscriber subscriber : subscribers) {
+            subscriber.onMessage(message);
+        }
+    }
+
+    @Override
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public boolean isClustered() {
+        return false;
+    }
+
+    @Override
+    public Ping gossip(Ping ping) {
+        return Ping.newBuilder().setAck(true).build();
+    }
+}
@@ -0,0 +1,41 @@
+package ru.home.grpc.chat.server.cluster;
+
+import ru.home.grpc.chat.Ping;
+import ru.home.grpc.chat.ServerMessage;
+
+/**
+ * Fan-out of room and private messages to all server nodes
+ * <br> ChatService publishes here instead of delivering directly, every node
+ * (publisher too) gets message in subscriber and delivers it to own local clients
+ * <br> Implementation is selected by grpc.server.cluster.bus:
+ * <br> local - single node, delivered in-process (default)
+ * <br> peer - nodes send messages to each other directly over grpc (ClusterService), no broker needed,
+ * rooms are owned by nodes, membership and room interest are gossiped over ping rpc
+ */
+public interface MessageBus {
+
+    /**
+     * Deliver message to subscribers of all nodes
+     * <br> Local bus calls subscriber in caller thread, peer bus may deliver
+     * room message to local subscriber later (through room owner node)
+     */
+    void publish(ServerMessage message);
+
+    void subscribe(Subscriber subscriber);
+
+    /**
+     * @return there may be other nodes (presence of clients is known only locally)
+     */
+    boolean isClustered();
+
+    /**
+     * Heartbeat from peer node (ping rpc with cluster secret)
+     * @return own heartbeat
+     */
+    Ping gossip(Ping ping);
+
+
+    interface Subscriber {
+        void onMessage(ServerMessage message);
+    }
+}
@@ -0,0 +1,190 @@
+package ru.home.grpc.chat.server.cluster;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.home.grpc.chat.BusMessage;
+import ru.home.grpc.chat.ChatServiceGrpc;
+import ru.home.grpc.chat.ClusterServiceGrpc;
+import ru.home.grpc.chat.Ping;
+import ru.home.grpc.chat.PublishAck;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_CLUSTER_SECRET;
+
+/**
+ * Connection to one peer node: outgoing stream of published messages and gossip heartbeats
+ * <br> Messages are queued (bounded) and written by one thread at a time while stream is ready,
+ * like OutboundQueue does for clients. Stream waits for peer to be up (waitForReady)
+ * and is reopened by next message after failure.
+ * Messages are not persisted - when peer is down longer than queue lasts newest ones are dropped
+ */
+class PeerLink {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final String target;
+    private final ManagedChannel channel;
+    private final ClusterServiceGrpc.ClusterServiceStub stub;
+    private final ChatServiceGrpc.ChatServiceStub pingStub;
+    private final BlockingQueue<BusMessage> queue;
+
+    // drain requests counter, writer is running while wip > 0
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // null - not opened or failed
+    private volatile ClientCallStreamObserver<BusMessage> stream;
+
+    PeerLink(String target, String secret, int capacity) {
+
+        this.target = target;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+
+        Metadata headers = new Metadata();
+        headers.put(METADATA_KEY_CLUSTER_SECRET, secret);
+        stub = MetadataUtils.attachHeaders(ClusterServiceGrpc.newStub(channel), headers);
+        pingStub = MetadataUtils.attachHeaders(ChatServiceGrpc.newStub(channel), headers);
+    }
+
+
+    void offer(BusMessage message) {
+
+        if (!queue.offer(message)) {
+            if (dropped.getAndIncrement() % 1000 == 0) {
+                log.warn("Peer {} is not available, dropped {} messages", target, dropped.get());
+            }
+            return;
+        }
+        drain();
+    }
+
+
+    /**
+     * Send heartbeat, peer responds with own one
+     */
+    void ping(Ping ping, long timeout, Consumer<Ping> onResponse) {
+
+        pingStub.withDeadlineAfter(timeout, TimeUnit.MILLISECONDS).ping(ping, new StreamObserver<Ping>() {
+
+            @Override
+            public void onNext(Ping response) {
+                onResponse.accept(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.trace("Heartbeat to {} failed", target, t);
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        });
+    }
+
+
+    void shutdown() {
+        channel.shutdownNow();
+    }
+
+
+    String getTarget() {
+        return target;
+    }
+
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private void drain() {
+
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            ClientCallStreamObserver<BusMessage> current = stream;
+            if (current == null) {
+                open();
+            }
+            else {
+                BusMessage message;
+                while (current.isReady() && (message = queue.poll()) != null) {
+                    try {
+                        current.onNext(message);
+                    }
+                    catch (RuntimeException e) {
+                        log.debug("Failed to send to peer {}", target, e);
+                        break;
+                    }
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+
+    /**
+     * Writing starts from onReady
+     */
+    private void open() {
+
+        log.debug("Opening stream to peer {}", target);
+
+        stub.withWaitForReady().publish(new ClientResponseObserver<BusMessage, PublishAck>() {
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<BusMessage> requestStream) {
+                stream = requestStream;
+                requestStream.setOnReadyHandler(PeerLink.this::drain);
+            }
+
+            @Override
+            public void onNext(PublishAck value) {
+            }
+
+            // reopened by next message
+            @Override
+            public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() == Status.Code.UNAUTHENTICATED) {
+                    log.warn("Peer {} rejected cluster secret", target);
+                }
+                else {
+                    log.debug("Stream to peer {} failed", target, t);
+                }
+                stream = null;
+            }
+
+            @Override
+            public void onCompleted() {
+                stream = null;
+            }
+        });
+    }
+}
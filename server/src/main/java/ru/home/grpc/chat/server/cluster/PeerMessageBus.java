@@ -0,0 +1,465 @@
+package ru.home.grpc.chat.server.cluster;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import ru.home.grpc.chat.BusMessage;
+import ru.home.grpc.chat.Ping;
+import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.server.service.SessionRegistry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.invoke.MethodHandles;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server nodes exchange messages directly over grpc (ClusterService.publish), no broker needed
+ * <br> Each room is owned by one node (consistent-hash ring over alive nodes).
+ * Room message is forwarded to owner, owner fans it out only to nodes having room members
+ * (and delivers to own ones), so room traffic do not reach nodes not interested in it
+ * and all nodes see room messages in same order
+ * <br> Private messages are sent to all nodes - recipient may be anywhere
+ * <br> Membership: grpc.server.cluster.peers at start, then gossip heartbeat over ping rpc -
+ * each node pings known nodes with list of nodes it considers alive and rooms having
+ * local members. Node silent for failure-timeout is removed from ring,
+ * unknown node from heartbeat is added. Node learned by gossip and silent for evict-timeout
+ * is forgotten (its link is shut down), configured peers are kept to find cluster again
+ * <br> Peer calls carry shared grpc.server.cluster.secret
+ */
+@Component
+@ConditionalOnProperty(name = "grpc.server.cluster.bus", havingValue = "peer")
+public class PeerMessageBus implements MessageBus {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // this node as seen by other nodes, empty - localhost:{grpc.server.port}
+    @Value("${grpc.server.cluster.address:}")
+    private String address;
+
+    @Value("${grpc.server.port:8090}")
+    private int port;
+
+    // host:port, comma separated, others are learned from heartbeats
+    @Value("${grpc.server.cluster.peers:}")
+    private String[] peers;
+
+    @Value("${grpc.server.cluster.secret:}")
+    private String secret;
+
+    // ring points per node
+    @Value("${grpc.server.cluster.virtual-nodes:128}")
+    private int virtualNodes;
+
+    @Value("${grpc.server.cluster.heartbeat-ms:1000}")
+    private int heartbeatInterval;
+
+    // node without heartbeat is removed from ring, also interest expiry
+    @Value("${grpc.server.cluster.failure-timeout-ms:5000}")
+    private int failureTimeout;
+
+    // dead node learned by gossip is forgotten
+    @Value("${grpc.server.cluster.evict-timeout-ms:30000}")
+    private int evictTimeout;
+
+    // messages to one peer waiting for transport
+    @Value("${grpc.server.cluster.queue-capacity:4096}")
+    private int queueCapacity;
+
+    // rooms having local members
+    private SessionRegistry registry;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // address -> other node
+    private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<>();
+
+    // room -> node -> last time node has reported members in room
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> interest = new ConcurrentHashMap<>();
+
+    // alive nodes, this one included
+    private volatile ConsistentHashRing ring;
+
+    private ScheduledExecutorService heartbeatScheduler;
+
+
+    @Autowired
+    public void setRegistry(SessionRegistry registry) {
+        this.registry = registry;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        Assert.isTrue(!StringUtils.isEmpty(secret), "grpc.server.cluster.secret should be set");
+        Assert.isTrue(queueCapacity > 0, "cluster.queue-capacity should be > 0");
+        Assert.isTrue(heartbeatInterval > 0, "cluster.heartbeat-ms should be > 0");
+        Assert.isTrue(failureTimeout > heartbeatInterval, "cluster.failure-timeout-ms should be > heartbeat-ms");
+        Assert.isTrue(evictTimeout > failureTimeout, "cluster.evict-timeout-ms should be > failure-timeout-ms");
+
+        if (StringUtils.isEmpty(address)) {
+            address = "localhost:" + port;
+        }
+
+        for (String peer : peers) {
+            Member member = addMember(peer.trim());
+            if (member != null) {
+                member.seed = true;
+            }
+        }
+        updateRing();
+
+        heartbeatScheduler = new ScheduledThreadPoolExecutor(1, new DefaultThreadFactory("Heartbeat", true));
+        heartbeatScheduler.scheduleWithFixedDelay(this::heartbeat,
+            heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+
+        log.info("Node {}, peers: {}", address, members.keySet());
+    }
+
+
+    @PreDestroy
+    public void preDestroy() {
+
+        heartbeatScheduler.shutdownNow();
+
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            long dropped = entry.getValue().link.getDropped();
+            if (dropped > 0) {
+                log.info("Peer {}: {} messages dropped", entry.getKey(), dropped);
+            }
+            entry.getValue().link.shutdown();
+        }
+    }
+
+
+    @Override
+    public void publish(ServerMessage message) {
+
+        // private message, recipient may be on any node
+        if (!message.getTo().isEmpty()) {
+            deliver(message);
+
+            long now = System.currentTimeMillis();
+            BusMessage busMessage = busMessage(message, false);
+            for (Member member : members.values()) {
+                if (member.isAlive(now)) {
+                    member.link.offer(busMessage);
+                }
+            }
+            return;
+        }
+
+        String owner = ring.owner(message.getRoom());
+        Member member = members.get(owner);
+
+        if (member == null) {
+            fanOut(message);
+        }
+        else {
+            member.link.offer(busMessage(message, true));
+        }
+    }
+
+
+    @Override
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+
+    @Override
+    public boolean isClustered() {
+        return true;
+    }
+
+
+    @Override
+    public Ping gossip(Ping ping) {
+
+        onHeartbeat(ping);
+        return heartbeatMessage();
+    }
+
+
+    /**
+     * Message from peer node
+     */
+    void receive(BusMessage message) {
+
+        String origin = message.getOrigin();
+
+        // own message (node is listed in its own peers)
+        if (address.equals(origin)) {
+            return;
+        }
+
+        if (message.getForward()) {
+            // sender is room member, so origin is interested in room
+            touchInterest(message.getMessage().getRoom(), origin, System.currentTimeMillis());
+
+            // ring views may differ for a while after membership change,
+            // node got forwarded message fans it out anyway
+            fanOut(message.getMessage());
+        }
+        else {
+            deliver(message.getMessage());
+        }
+    }
+
+
+    String getSecret() {
+        return secret;
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    /**
+     * Room owner: deliver to local members and to nodes having room members
+     */
+    private void fanOut(ServerMessage message) {
+
+        deliver(message);
+
+        Map<String, Long> nodes = interest.get(message.getRoom());
+        if (nodes == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        BusMessage busMessage = null;
+
+        for (Map.Entry<String, Long> entry : nodes.entrySet()) {
+
+            // not reported for a while - node has no members in room anymore
+            if (now - entry.getValue() > failureTimeout) {
+                nodes.remove(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            Member member = members.get(entry.getKey());
+            if (member != null && member.isAlive(now)) {
+                if (busMessage == null) {
+                    busMessage = busMessage(message, false);
+                }
+                member.link.offer(busMessage);
+            }
+        }
+    }
+
+
+    private void deliver(ServerMessage message) {
+
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.onMessage(message);
+            }
+            catch (RuntimeException e) {
+                log.warn("Subscriber failed", e);
+            }
+        }
+    }
+
+
+    private BusMessage busMessage(ServerMessage message, boolean forward) {
+
+        return BusMessage.newBuilder()
+            .setOrigin(address)
+            .setMessage(message)
+            .setForward(forward)
+            .build();
+    }
+
+
+    /**
+     * Runs on heartbeatScheduler
+     */
+    private void heartbeat() {
+
+        try {
+            Ping ping = heartbeatMessage();
+            for (Member member : members.values()) {
+                member.link.ping(ping, heartbeatInterval, this::onHeartbeat);
+            }
+            evictDead();
+            expireInterest();
+            updateRing();
+        }
+        catch (RuntimeException e) {
+            // keep heartbeat scheduled
+            log.warn("Heartbeat failed", e);
+        }
+    }
+
+
+    private Ping heartbeatMessage() {
+
+        return Ping.newBuilder()
+            .setAck(true)
+            .setNode(address)
+            .addAllMembers(ring.getNodes())
+            .addAllRooms(registry.getRooms())
+            .build();
+    }
+
+
+    /**
+     * Heartbeat request or response from other node
+     */
+    private void onHeartbeat(Ping ping) {
+
+        String node = ping.getNode();
+        if (StringUtils.isEmpty(node) || address.equals(node)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        addMember(node).lastSeen = now;
+
+        for (String other : ping.getMembersList()) {
+            addMember(other);
+        }
+
+        for (String room : ping.getRoomsList()) {
+            touchInterest(room, node, now);
+        }
+
+        updateRing();
+    }
+
+
+    /**
+     * @return member, new one is considered alive until failure-timeout
+     */
+    private Member addMember(String node) {
+
+        if (StringUtils.isEmpty(node) || address.equals(node)) {
+            return null;
+        }
+
+        return members.computeIfAbsent(node, key -> {
+            log.info("Node {} added", key);
+            return new Member(new PeerLink(key, secret, queueCapacity));
+        });
+    }
+
+
+    /**
+     * Forget nodes learned by gossip which are dead for evict-timeout
+     * <br> Alive nodes gossip only nodes alive for them, so evicted node is not re-added
+     * until it is back
+     */
+    private void evictDead() {
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            if (member.seed || now - member.lastSeen <= evictTimeout || !members.remove(entry.getKey(), member)) {
+                continue;
+            }
+
+            log.info("Node {} evicted, {} messages dropped", entry.getKey(), member.link.getDropped());
+            member.link.shutdown();
+
+            for (String room : interest.keySet()) {
+                interest.computeIfPresent(room, (key, nodes) -> {
+                    nodes.remove(entry.getKey());
+                    return nodes.isEmpty() ? null : nodes;
+                });
+            }
+        }
+    }
+
+
+    /**
+     * Drop nodes which have not reported room members for failure-timeout,
+     * room without interested nodes is removed (fanOut() expires nodes only when room gets message)
+     */
+    private void expireInterest() {
+
+        long now = System.currentTimeMillis();
+
+        for (String room : interest.keySet()) {
+            interest.computeIfPresent(room, (key, nodes) -> {
+                nodes.values().removeIf(time -> now - time > failureTimeout);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+
+    /**
+     * Under map lock, so node is not put to room map being removed by expireInterest()
+     */
+    private void touchInterest(String room, String node, long now) {
+
+        interest.compute(room, (key, nodes) -> {
+            if (nodes == null) {
+                nodes = new ConcurrentHashMap<>();
+            }
+            nodes.put(node, now);
+            return nodes;
+        });
+    }
+
+
+    /**
+     * Rebuild ring if set of alive nodes has changed
+     */
+    private synchronized void updateRing() {
+
+        long now = System.currentTimeMillis();
+
+        Set<String> alive = new TreeSet<>();
+        alive.add(address);
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            if (entry.getValue().isAlive(now)) {
+                alive.add(entry.getKey());
+            }
+        }
+
+        if (ring == null || !ring.getNodes().equals(alive)) {
+            ring = new ConsistentHashRing(alive, virtualNodes);
+            log.info("Ring nodes: {}", alive);
+        }
+    }
+
+
+    private final class Member {
+
+        final PeerLink link;
+
+        // last heartbeat
+        volatile long lastSeen = System.currentTimeMillis();
+
+        // from grpc.server.cluster.peers, never evicted
+        volatile boolean seed;
+
+        Member(PeerLink link) {
+            this.link = link;
+        }
+
+        boolean isAlive(long now) {
+            return now - lastSeen <= failureTimeout;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ru.home.grpc.chat.server.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Connection keepalive and idle policy (grpc.server.keepalive.*)
+ * <br> Unauthenticated connection has no open calls, it is closed after max-connection-idle.
+ * Authenticated client holds chat stream open, it is checked by keepalive pings
+ * <br> adaptive = true - server ping interval starts from time and doubles after each answered ping
+ * up to max-time while connection has open streams (long lived chat), resets when streams are closed.
+ * No ping at all while data is coming from client
+ */
+@Component
+@ConfigurationProperties(prefix = "grpc.server.keepalive")
+public class KeepAliveProperties {
+
+    // server ping interval (adaptive - initial), grpc keepalive raises it to at least 10s
+    private Duration time = Duration.ofSeconds(10);
+
+    // connection is closed if ping is not answered
+    private Duration timeout = Duration.ofSeconds(20);
+
+    private boolean adaptive = false;
+
+    // adaptive ping interval limit
+    private Duration maxTime = Duration.ofMinutes(5);
+
+    // clients pinging more often are disconnected (GOAWAY too_many_pings)
+    private Duration permitTime = Duration.ofSeconds(10);
+
+    // clients may ping connection without calls (before authentication, after chat stream is closed)
+    private boolean permitWithoutCalls = true;
+
+    // connection without calls is closed
+    private Duration maxConnectionIdle = Duration.ofSeconds(30);
+
+    // keepalive counters are logged, 0 - disabled
+    private Duration statsInterval = Duration.ofMinutes(1);
+
+
+    public Duration getTime() {
+        return time;
+    }
+
+    public void setTime(Duration time) {
+        this.time = time;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public Duration getMaxTime() {
+        return maxTime;
+    }
+
+    public void setMaxTime(Duration maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    public Duration getPermitTime() {
+        return permitTime;
+    }
+
+    public void setPermitTime(Duration permitTime) {
+        this.permitTime = permitTime;
+    }
+
+    public boolean isPermitWithoutCalls() {
+        return permitWithoutCalls;
+    }
+
+    public void setPermitWithoutCalls(boolean permitWithoutCalls) {
+        this.permitWithoutCalls = permitWithoutCalls;
+    }
+
+    public Duration getMaxConnectionIdle() {
+        return maxConnectionIdle;
+    }
+
+    public void setMaxConnectionIdle(Duration maxConnectionIdle) {
+        this.maxConnectionIdle = maxConnectionIdle;
+    }
+
+    public Duration getStatsInterval() {
+        return statsInterval;
+    }
+
+    public void setStatsInterval(Duration statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+}
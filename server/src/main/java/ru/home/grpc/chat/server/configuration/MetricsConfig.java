@@ -0,0 +1,35 @@
+package ru.home.grpc.chat.server.configuration;
+
+import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.core.instrument.binder.system.UptimeMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Meter registry of chat server, scraped by MetricsEndpoint
+ * <br> No spring boot actuator here (no web server), so registry is created manually
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean(destroyMethod = "close")
+    public PrometheusMeterRegistry meterRegistry() {
+
+        PrometheusMeterRegistry result = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+        new ClassLoaderMetrics().bindTo(result);
+        new JvmMemoryMetrics().bindTo(result);
+        new JvmGcMetrics().bindTo(result);
+        new JvmThreadMetrics().bindTo(result);
+        new ProcessorMetrics().bindTo(result);
+        new UptimeMetrics().bindTo(result);
+
+        return result;
+    }
+}
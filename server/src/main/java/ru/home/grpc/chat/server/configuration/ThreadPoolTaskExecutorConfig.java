@@ -0,0 +1,76 @@
+package ru.home.grpc.chat.server.configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import ru.home.grpc.chat.server.utils.BoundedExecutor;
+import ru.home.grpc.chat.server.utils.VirtualThreads;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+@Configuration
+public class ThreadPoolTaskExecutorConfig {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    /**
+     * Shared pool that drains per-client outbound queues
+     * <br> threads = 0 - use number of available processors
+     */
+    @Bean
+    public ThreadPoolTaskExecutor outboundExecutor(@Value("${grpc.server.outbound.threads:0}") int threads) {
+
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(threads);
+        pool.setMaxPoolSize(threads);
+        pool.setDaemon(true);
+        pool.setWaitForTasksToCompleteOnShutdown(false);
+        pool.setThreadNamePrefix("Outbound-");
+        return pool;
+    }
+
+
+    /**
+     * Password verification (bcrypt), bounded so login storm can't exhaust memory/threads
+     * <br> threads = 0 - use number of available processors
+     * <br> When queue is full authentication is rejected with UNAVAILABLE and grpc-retry-pushback-ms trailer
+     * (client should retry after backoff, see AdmissionInterceptor)
+     * <br> executor = virtual - thread per authentication on virtual threads (java 21+),
+     * useful when password store blocks on io, queue-capacity limits authentications in flight
+     */
+    @Bean
+    public Executor authExecutor(@Value("${grpc.server.auth.executor:pool}") String mode,
+                                 @Value("${grpc.server.auth.threads:0}") int threads,
+                                 @Value("${grpc.server.auth.queue-capacity:1000}") int queueCapacity) {
+
+        if ("virtual".equalsIgnoreCase(mode)) {
+            ExecutorService virtual = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                return new BoundedExecutor(virtual, queueCapacity);
+            }
+            log.warn("Virtual threads are not supported by this jvm, auth executor falls back to pool");
+        }
+
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(threads);
+        pool.setMaxPoolSize(threads);
+        pool.setQueueCapacity(queueCapacity);
+        pool.setDaemon(true);
+        pool.setWaitForTasksToCompleteOnShutdown(false);
+        pool.setThreadNamePrefix("Auth-");
+        return pool;
+    }
+}
@@ -1,29 +1,81 @@
 package ru.home.grpc.chat.server.entities;
 
 import io.grpc.stub.StreamObserver;
-import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.server.service.OutboundQueue;
+import ru.home.grpc.chat.server.service.SerializedMessage;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Client {
 
+    public enum State {
+        // authenticated, chat stream not opened yet
+        PENDING,
+        // chat stream opened
+        STREAMING,
+        // removed from SessionRegistry
+        CLOSED
+    }
 
     String login;
     String token;
 
-    StreamObserver<ServerMessage> chatObserver;
+    // authentication time, epoch millis
+    final long issuedAt = System.currentTimeMillis();
+
+    StreamObserver<SerializedMessage> chatObserver;
+
+    // messages to be sent to client
+    OutboundQueue outbound;
+
+    // rooms client has joined
+    Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.PENDING);
 
     public Client(String login, String token) {
         this.login = login;
         this.token = token;
     }
 
-    public StreamObserver<ServerMessage> getChatObserver() {
+    public StreamObserver<SerializedMessage> getChatObserver() {
         return chatObserver;
     }
 
-    public void setChatObserver(StreamObserver<ServerMessage> chatObserver) {
+    public void setChatObserver(StreamObserver<SerializedMessage> chatObserver) {
         this.chatObserver = chatObserver;
     }
 
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public boolean compareAndSetState(State expect, State update) {
+        return state.compareAndSet(expect, update);
+    }
+
+    public State getAndSetState(State update) {
+        return state.getAndSet(update);
+    }
+
     public String getLogin() {
         return login;
     }
@@ -0,0 +1,112 @@
+package ru.home.grpc.chat.server.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Prometheus scrape endpoint: GET http://{grpc.server.metrics.address}:{grpc.server.metrics.port}/metrics
+ * <br> JDK http server on own single thread, grpc transport is not touched by scrapes
+ */
+@Component
+public class MetricsEndpoint {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String PATH = "/metrics";
+
+    // 0 - disabled
+    @Value("${grpc.server.metrics.port:9464}")
+    private int port;
+
+    // empty - all interfaces
+    @Value("${grpc.server.metrics.address:}")
+    private String address;
+
+    private PrometheusMeterRegistry meterRegistry;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+
+    @Autowired
+    public void setMeterRegistry(PrometheusMeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() throws IOException {
+
+        if (port <= 0) {
+            log.info("Metrics endpoint disabled");
+            return;
+        }
+
+        InetSocketAddress socketAddress = StringUtils.isEmpty(address) ?
+            new InetSocketAddress(port) : new InetSocketAddress(address, port);
+
+        executor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("Metrics", true));
+
+        server = HttpServer.create(socketAddress, 0);
+        server.createContext(PATH, this::scrape);
+        server.setExecutor(executor);
+        server.start();
+
+        log.info("Metrics endpoint: http://{}:{}{}", socketAddress.getHostString(), server.getAddress().getPort(), PATH);
+    }
+
+
+    @PreDestroy
+    public void preDestroy() {
+
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private void scrape(HttpExchange exchange) throws IOException {
+
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = meterRegistry.scrape().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.home.grpc.chat.server.metrics;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-method call duration histograms: grpc.server.calls{service, method, status}
+ * <br> Should be outermost interceptor, so calls rejected by other interceptors are counted too
+ * <br> Timers are resolved once per method and status, call close does no registry lookups
+ * <br> Duration of chat streams is session length
+ */
+@Component
+public class MetricsInterceptor implements ServerInterceptor {
+
+    private static final Status.Code[] CODES = Status.Code.values();
+
+    private MeterRegistry meterRegistry;
+
+    // full method name -> timers by status code
+    private final ConcurrentMap<String, MethodTimers> timers = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+
+        MetricsCall<ReqT, RespT> metricsCall = new MetricsCall<>(call, getTimers(call.getMethodDescriptor()));
+        return new MetricsListener<>(next.startCall(metricsCall, headers), metricsCall);
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private MethodTimers getTimers(MethodDescriptor<?, ?> method) {
+
+        MethodTimers result = timers.get(method.getFullMethodName());
+        if (result == null) {
+            result = timers.computeIfAbsent(method.getFullMethodName(), MethodTimers::new);
+        }
+        return result;
+    }
+
+
+    /**
+     * Timers of one method, timer of status is registered on first call completed with it
+     */
+    private final class MethodTimers {
+
+        private final String service;
+        private final String method;
+
+        // by status code, registry returns same timer if several threads register it at once
+        private final Timer[] byCode = new Timer[CODES.length];
+
+        MethodTimers(String fullName) {
+            service = MethodDescriptor.extractFullServiceName(fullName);
+            method = fullName.substring(fullName.lastIndexOf('/') + 1);
+        }
+
+        void record(Status.Code code, long nanos) {
+
+            Timer timer = byCode[code.value()];
+            if (timer == null) {
+                timer = Timer.builder("grpc.server.calls")
+                    .description("Duration of server calls")
+                    .tag("service", service)
+                    .tag("method", method)
+                    .tag("status", code.name())
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(Duration.ofHours(1))
+                    .register(meterRegistry);
+                byCode[code.value()] = timer;
+            }
+            timer.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    /**
+     * Records call duration once: on close by server or on cancel by client (stream reset, disconnect)
+     */
+    private static final class MetricsCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        private final MethodTimers timers;
+        private final long started = System.nanoTime();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        MetricsCall(ServerCall<ReqT, RespT> delegate, MethodTimers timers) {
+            super(delegate);
+            this.timers = timers;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            record(status.getCode());
+            super.close(status, trailers);
+        }
+
+        void record(Status.Code code) {
+            if (recorded.compareAndSet(false, true)) {
+                timers.record(code, System.nanoTime() - started);
+            }
+        }
+    }
+
+
+    private static final class MetricsListener<ReqT> extends ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT> {
+
+        private final MetricsCall<ReqT, ?> call;
+
+        MetricsListener(ServerCall.Listener<ReqT> delegate, MetricsCall<ReqT, ?> call) {
+            super(delegate);
+            this.call = call;
+        }
+
+        @Override
+        public void onCancel() {
+            call.record(Status.Code.CANCELLED);
+            super.onCancel();
+        }
+    }
+}
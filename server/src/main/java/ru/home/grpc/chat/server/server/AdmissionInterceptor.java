@@ -0,0 +1,214 @@
+package ru.home.grpc.chat.server.server;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.ChatServiceGrpc;
+
+import javax.annotation.PostConstruct;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.home.grpc.chat.server.utils.Headers.METADATA_KEY_RETRY_PUSHBACK;
+
+/**
+ * Load shedding before any other work on call (token lookup, password verification)
+ * <br> Limits of authenticate calls in flight and of chat/chatBatch streams of server, 0 - not limited
+ * <br> Calls over limit are closed with UNAVAILABLE and grpc-retry-pushback-ms trailer: retry-after with up to 50% jitter,
+ * so rejected clients do not come back all at once
+ */
+@Component
+public class AdmissionInterceptor implements ServerInterceptor {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String AUTHENTICATE_METHOD = ChatServiceGrpc.getAuthenticateMethod().getFullMethodName();
+    private static final String CHAT_METHOD = ChatServiceGrpc.getChatMethod().getFullMethodName();
+    private static final String CHAT_BATCH_METHOD = ChatServiceGrpc.getChatBatchMethod().getFullMethodName();
+
+    @Value("${grpc.server.admission.max-authentications:1000}")
+    private int maxAuthentications;
+
+    @Value("${grpc.server.admission.max-streams:10000}")
+    private int maxStreams;
+
+    // milliseconds
+    @Value("${grpc.server.admission.retry-after:1000}")
+    private long retryAfter;
+
+    private MeterRegistry meterRegistry;
+
+    private Counter authenticationRejected;
+    private Counter streamRejected;
+
+    private final AtomicInteger authentications = new AtomicInteger();
+    private final AtomicInteger streams = new AtomicInteger();
+
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        Assert.isTrue(maxAuthentications >= 0 && maxStreams >= 0,
+            "admission.max-authentications/max-streams should be >= 0");
+        Assert.isTrue(retryAfter > 0, "admission.retry-after should be > 0");
+
+        authenticationRejected = rejectedCounter(meterRegistry, "authentications");
+        streamRejected = rejectedCounter(meterRegistry, "streams");
+
+        Gauge.builder("grpc.server.admission.active", authentications, AtomicInteger::get)
+            .description("Admitted calls in progress")
+            .tag("type", "authentications")
+            .register(meterRegistry);
+
+        Gauge.builder("grpc.server.admission.active", streams, AtomicInteger::get)
+            .description("Admitted calls in progress")
+            .tag("type", "streams")
+            .register(meterRegistry);
+    }
+
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+
+        String name = call.getMethodDescriptor().getFullMethodName();
+
+        AtomicInteger active;
+        int limit;
+        Counter rejected;
+
+        if (AUTHENTICATE_METHOD.equals(name)) {
+            active = authentications;
+            limit = maxAuthentications;
+            rejected = authenticationRejected;
+        }
+        else if (CHAT_METHOD.equals(name) || CHAT_BATCH_METHOD.equals(name)) {
+            active = streams;
+            limit = maxStreams;
+            rejected = streamRejected;
+        }
+        else {
+            return next.startCall(call, headers);
+        }
+
+        if (active.incrementAndGet() > limit && limit > 0) {
+            active.decrementAndGet();
+            rejected.increment();
+            log.debug("Call {} rejected, server is busy", name);
+            return reject(call, "Server is busy, try later");
+        }
+
+        AdmittedCall<ReqT, RespT> admitted = new AdmittedCall<>(call, active);
+        try {
+            return new AdmittedListener<>(next.startCall(admitted, headers), admitted);
+        }
+        catch (RuntimeException e) {
+            admitted.release();
+            throw e;
+        }
+    }
+
+
+    static Counter rejectedCounter(MeterRegistry meterRegistry, String reason) {
+
+        return Counter.builder("grpc.server.admission.rejected")
+            .description("Connections and calls shed by admission control")
+            .tag("reason", reason)
+            .register(meterRegistry);
+    }
+
+
+    /**
+     * Same overload response for calls admitted here but shed later by service (its work queue is full)
+     */
+    public StatusRuntimeException unavailable(String description) {
+        return Status.UNAVAILABLE.withDescription(description).asRuntimeException(pushbackTrailers());
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private <ReqT, RespT> ServerCall.Listener<ReqT> reject(ServerCall<ReqT, RespT> call, String description) {
+
+        call.close(Status.UNAVAILABLE.withDescription(description), pushbackTrailers());
+        return new ServerCall.Listener<ReqT>() {};
+    }
+
+
+    private Metadata pushbackTrailers() {
+
+        long pushback = retryAfter + ThreadLocalRandom.current().nextLong(retryAfter / 2 + 1);
+
+        Metadata trailers = new Metadata();
+        trailers.put(METADATA_KEY_RETRY_PUSHBACK, Long.toString(pushback));
+        return trailers;
+    }
+
+
+    /**
+     * Frees its slot once: on close by server or on cancel by client
+     */
+    private static final class AdmittedCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        private final AtomicInteger active;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        AdmittedCall(ServerCall<ReqT, RespT> delegate, AtomicInteger active) {
+            super(delegate);
+            this.active = active;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            release();
+            super.close(status, trailers);
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+
+    private static final class AdmittedListener<ReqT> extends ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT> {
+
+        private final AdmittedCall<ReqT, ?> call;
+
+        AdmittedListener(ServerCall.Listener<ReqT> delegate, AdmittedCall<ReqT, ?> call) {
+            super(delegate);
+            this.call = call;
+        }
+
+        @Override
+        public void onCancel() {
+            call.release();
+            super.onCancel();
+        }
+    }
+}
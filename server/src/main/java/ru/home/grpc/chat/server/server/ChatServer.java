@@ -20,20 +20,44 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerInterceptors;
 import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.server.cluster.ClusterService;
+import ru.home.grpc.chat.server.configuration.KeepAliveProperties;
+import ru.home.grpc.chat.server.metrics.MetricsInterceptor;
 import ru.home.grpc.chat.server.service.ChatService;
 import ru.home.grpc.chat.server.service.HeaderInterceptor;
+import ru.home.grpc.chat.server.utils.VirtualThreads;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
 
 /**
  * A sample gRPC server that serve the Chat (see chat.proto) service.
@@ -42,26 +66,133 @@ import java.util.concurrent.TimeUnit;
 public class ChatServer {
     private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    private static final int PERMIT_KEEP_ALIVE_TIME = 10;
-    private static final int MAX_CONNECTION_IDLE = 30;
-    private static final int KEEP_ALIVE_TIME = 10;
-    private static final int KEEP_ALIVE_TIMEOUT = 20;
-
     @Value("${grpc.server.port:8090}")
     public Integer port;
 
+    // threads accepting connections
+    @Value("${grpc.server.threads.boss:1}")
+    private int bossThreads;
+
+    // threads doing connection io, 0 - netty default (2 * number of cpu)
+    @Value("${grpc.server.threads.worker:0}")
+    private int workerThreads;
+
+    // AUTO - epoll if available (linux), else nio
+    @Value("${grpc.server.transport.type:AUTO}")
+    private TransportType transportType;
+
+    // connection buffers: pooled (direct), unpooled, grpc (grpc-netty default)
+    @Value("${grpc.server.transport.allocator:pooled}")
+    private String allocator;
+
+    @Value("${grpc.server.transport.tcp-no-delay:true}")
+    private boolean tcpNoDelay;
+
+    // socket buffers, bytes, 0 - os default
+    @Value("${grpc.server.transport.so-rcvbuf:0}")
+    private int receiveBuffer;
+
+    @Value("${grpc.server.transport.so-sndbuf:0}")
+    private int sendBuffer;
+
+    // connection stops being writable when so many bytes are queued in netty,
+    // writable again below low mark (outbound queues wait for onReady meanwhile)
+    @Value("${grpc.server.transport.write-buffer-low:32768}")
+    private int writeBufferLow;
+
+    @Value("${grpc.server.transport.write-buffer-high:65536}")
+    private int writeBufferHigh;
+
+    // where service methods are run
+    @Value("${grpc.server.executor.mode:DEFAULT}")
+    private ExecutorMode executorMode;
+
+    // FORK_JOIN parallelism, 0 - number of cpu
+    @Value("${grpc.server.executor.threads:0}")
+    private int executorThreads;
+
+    // HTTP/2 MAX_CONCURRENT_STREAMS, 0 - not limited
+    @Value("${grpc.server.admission.max-calls-per-connection:16}")
+    private int maxCallsPerConnection;
+
     private Server server;
 
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+
+    // null - grpc default or direct
+    private ExecutorService executor;
+
+    private KeepAliveProperties keepAlive;
+
+    private final KeepAliveStats keepAliveStats = new KeepAliveStats();
+
+    private ChatService chatService;
+
+    private HeaderInterceptor headerInterceptor;
+
+    private MetricsInterceptor metricsInterceptor;
+
+    // connection and call limits
+    private ConnectionLimiter connectionLimiter;
+
+    private AdmissionInterceptor admissionInterceptor;
+
+    private MeterRegistry meterRegistry;
+
+    // server to server, only with peer message bus
+    private ClusterService clusterService;
+
     public ChatServer() throws Exception {
     }
 
+    @Autowired
+    public void setChatService(ChatService chatService) {
+        this.chatService = chatService;
+    }
+
+    @Autowired
+    public void setKeepAlive(KeepAliveProperties keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    @Autowired
+    public void setHeaderInterceptor(HeaderInterceptor headerInterceptor) {
+        this.headerInterceptor = headerInterceptor;
+    }
+
+    @Autowired
+    public void setConnectionLimiter(ConnectionLimiter connectionLimiter) {
+        this.connectionLimiter = connectionLimiter;
+    }
+
+    @Autowired
+    public void setAdmissionInterceptor(AdmissionInterceptor admissionInterceptor) {
+        this.admissionInterceptor = admissionInterceptor;
+    }
+
+    @Autowired
+    public void setMetricsInterceptor(MetricsInterceptor metricsInterceptor) {
+        this.metricsInterceptor = metricsInterceptor;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Autowired(required = false)
+    public void setClusterService(ClusterService clusterService) {
+        this.clusterService = clusterService;
+    }
+
 
 
     /** Start serving requests. */
     public void start() throws IOException {
 
         server.start();
-        log.info("Server started, listening on " + port);
+        log.info("Server started, listening on " + server.getPort());
 
 //        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 //            // Use stderr here since the logger may have been reset by its JVM shutdown hook.
@@ -76,6 +207,26 @@ public class ChatServer {
         if (server != null) {
             server.shutdown();
         }
+
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    public KeepAliveStats getKeepAliveStats() {
+        return keepAliveStats;
+    }
+
+    /**
+     * @return port server is listening on (grpc.server.port = 0 - chosen by os)
+     */
+    public int getPort() {
+        return server.getPort();
     }
 
 //    /**
@@ -103,17 +254,191 @@ public class ChatServer {
         // Without keepalive tcp connection will die on NAT translation decay
         // (idle TCP connection through NAT die in ~10 min)
 
-        server = NettyServerBuilder
+        NettyServerBuilder builder = NettyServerBuilder
             .forPort(port)
-            .permitKeepAliveWithoutCalls(true)
-            .maxConnectionIdle(MAX_CONNECTION_IDLE, TimeUnit.SECONDS)
-            .keepAliveTime(KEEP_ALIVE_TIME, TimeUnit.SECONDS)
-            .keepAliveTimeout(KEEP_ALIVE_TIMEOUT, TimeUnit.SECONDS)
-            .permitKeepAliveTime(PERMIT_KEEP_ALIVE_TIME, TimeUnit.SECONDS)
-            .addService(ServerInterceptors.intercept(new ChatService(), new HeaderInterceptor()))
-            .build();
+            // last is outermost - admission before authentication, rejected calls are measured too
+            .addService(ServerInterceptors.intercept(chatService.bindSerializedService(),
+                headerInterceptor, admissionInterceptor, metricsInterceptor));
+
+        Assert.isTrue(maxCallsPerConnection >= 0, "admission.max-calls-per-connection should be >= 0");
+        if (maxCallsPerConnection > 0) {
+            builder.maxConcurrentCallsPerConnection(maxCallsPerConnection);
+        }
+
+        configureKeepAlive(builder);
+        configureTransport(builder);
+        configureExecutor(builder);
+
+        if (clusterService != null) {
+            builder.addService(ServerInterceptors.intercept(clusterService.bindSecuredService(), metricsInterceptor));
+        }
+
+        server = builder.build();
 
         start();
+
+        registerMetrics();
+
+        long statsInterval = keepAlive.getStatsInterval().toMillis();
+        if (statsInterval > 0) {
+            workerGroup.scheduleAtFixedRate(() -> log.info("Keepalive: {}", keepAliveStats),
+                statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * PING counters, read on scrape
+     */
+    private void registerMetrics() {
+
+        keepAliveCounter("received", KeepAliveStats::getReceived);
+        keepAliveCounter("answered", KeepAliveStats::getAnswered);
+        keepAliveCounter("sent", KeepAliveStats::getSent);
+
+        FunctionCounter.builder("grpc.server.keepalive.timeouts", keepAliveStats, KeepAliveStats::getTimeouts)
+            .description("Connections closed because keepalive ping was not answered")
+            .register(meterRegistry);
+    }
+
+
+    private void keepAliveCounter(String type, ToDoubleFunction<KeepAliveStats> count) {
+
+        FunctionCounter.builder("grpc.server.keepalive.pings", keepAliveStats, count)
+            .description("HTTP/2 keepalive pings")
+            .tag("type", type)
+            .register(meterRegistry);
+    }
+
+
+    /**
+     * Keepalive pings and idle connections, see KeepAliveProperties
+     */
+    private void configureKeepAlive(NettyServerBuilder builder) {
+
+        Assert.isTrue(!keepAlive.getTime().isNegative() && !keepAlive.getTime().isZero(), "keepalive.time should be > 0");
+        Assert.isTrue(keepAlive.getMaxTime().compareTo(keepAlive.getTime()) >= 0, "keepalive.max-time should be >= time");
+
+        builder
+            .permitKeepAliveWithoutCalls(keepAlive.isPermitWithoutCalls())
+            .permitKeepAliveTime(keepAlive.getPermitTime().toNanos(), TimeUnit.NANOSECONDS)
+            .maxConnectionIdle(keepAlive.getMaxConnectionIdle().toNanos(), TimeUnit.NANOSECONDS)
+            .protocolNegotiator(new KeepAliveNegotiator(keepAlive, keepAliveStats, connectionLimiter));
+
+        if (keepAlive.isAdaptive()) {
+            // grpc keepalive disabled, connections are pinged by KeepAliveNegotiator
+            builder.keepAliveTime(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        else {
+            builder
+                .keepAliveTime(keepAlive.getTime().toNanos(), TimeUnit.NANOSECONDS)
+                .keepAliveTimeout(keepAlive.getTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    /**
+     * Event loops, channel type and connection options
+     */
+    private void configureTransport(NettyServerBuilder builder) {
+
+        Assert.isTrue(bossThreads > 0, "threads.boss should be > 0");
+        Assert.isTrue(workerThreads >= 0, "threads.worker should be >= 0");
+        Assert.isTrue(receiveBuffer >= 0 && sendBuffer >= 0, "transport.so-rcvbuf/so-sndbuf should be >= 0");
+        Assert.isTrue(writeBufferLow > 0 && writeBufferHigh >= writeBufferLow,
+            "transport.write-buffer-high should be >= write-buffer-low > 0");
+
+        ThreadFactory bossFactory = new DefaultThreadFactory("Boss", true);
+        ThreadFactory workerFactory = new DefaultThreadFactory("Worker", true);
+
+        boolean epoll = transportType == TransportType.EPOLL ||
+            transportType == TransportType.AUTO && Epoll.isAvailable();
+
+        if (epoll) {
+            if (!Epoll.isAvailable()) {
+                throw new IllegalStateException("Epoll transport is not available", Epoll.unavailabilityCause());
+            }
+            bossGroup = new EpollEventLoopGroup(bossThreads, bossFactory);
+            workerGroup = new EpollEventLoopGroup(workerThreads, workerFactory);
+            builder.channelType(EpollServerSocketChannel.class);
+        }
+        else {
+            bossGroup = new NioEventLoopGroup(bossThreads, bossFactory);
+            workerGroup = new NioEventLoopGroup(workerThreads, workerFactory);
+            builder.channelType(NioServerSocketChannel.class);
+        }
+
+        builder.bossEventLoopGroup(bossGroup).workerEventLoopGroup(workerGroup);
+
+        ByteBufAllocator bufAllocator = getAllocator();
+        if (bufAllocator != null) {
+            builder.withChildOption(ChannelOption.ALLOCATOR, bufAllocator);
+        }
+
+        builder.withChildOption(ChannelOption.TCP_NODELAY, tcpNoDelay);
+        builder.withChildOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+            new WriteBufferWaterMark(writeBufferLow, writeBufferHigh));
+
+        if (receiveBuffer > 0) {
+            builder.withChildOption(ChannelOption.SO_RCVBUF, receiveBuffer);
+        }
+        if (sendBuffer > 0) {
+            builder.withChildOption(ChannelOption.SO_SNDBUF, sendBuffer);
+        }
+
+        log.info("Transport: {}, allocator: {}", epoll ? "epoll" : "nio", allocator);
+    }
+
+
+    /**
+     * @return null - keep grpc-netty allocator
+     */
+    private ByteBufAllocator getAllocator() {
+
+        switch (allocator.toLowerCase()) {
+            case "pooled":
+                // shared netty pool (direct buffers preferred), own pool would duplicate arenas
+                // and direct memory - no copy to socket, no GC churn per message
+                return PooledByteBufAllocator.DEFAULT;
+            case "unpooled":
+                return new UnpooledByteBufAllocator(true);
+            case "grpc":
+                return null;
+            default:
+                throw new IllegalArgumentException("Unknown grpc.server.transport.allocator: " + allocator);
+        }
+    }
+
+
+    /**
+     * Executor of service methods
+     */
+    private void configureExecutor(NettyServerBuilder builder) {
+
+        ExecutorMode mode = executorMode;
+
+        if (mode == ExecutorMode.VIRTUAL) {
+            executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            if (executor == null) {
+                log.warn("Virtual threads are not supported by this jvm, using FORK_JOIN executor");
+                mode = ExecutorMode.FORK_JOIN;
+            }
+        }
+
+        if (mode == ExecutorMode.FORK_JOIN) {
+            int parallelism = executorThreads > 0 ? executorThreads : Runtime.getRuntime().availableProcessors();
+            // async mode - FIFO for tasks that are never joined
+            executor = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        }
+
+        if (mode == ExecutorMode.DIRECT) {
+            builder.directExecutor();
+        }
+        else if (executor != null) {
+            builder.executor(executor);
+        }
+
+        log.info("Executor: {}", mode);
     }
 
 
@@ -0,0 +1,134 @@
+package ru.home.grpc.chat.server.server;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection admission: limits of all connections and of connections from one ip, 0 - not limited
+ * <br> Checked by KeepAliveNegotiator when connection is accepted, connection over limit
+ * is closed at once, before HTTP/2 handshake (grpc transport filter can not refuse connection)
+ */
+@Component
+public class ConnectionLimiter {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    @Value("${grpc.server.admission.max-connections:10000}")
+    private int maxConnections;
+
+    @Value("${grpc.server.admission.max-connections-per-ip:1000}")
+    private int maxConnectionsPerIp;
+
+    private MeterRegistry meterRegistry;
+
+    private Counter rejected;
+    private Counter rejectedPerIp;
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // client ip -> connections, ips without connections are removed
+    private final ConcurrentMap<InetAddress, AtomicInteger> ipConnections = new ConcurrentHashMap<>();
+
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        Assert.isTrue(maxConnections >= 0 && maxConnectionsPerIp >= 0,
+            "admission.max-connections/max-connections-per-ip should be >= 0");
+
+        rejected = AdmissionInterceptor.rejectedCounter(meterRegistry, "connections");
+        rejectedPerIp = AdmissionInterceptor.rejectedCounter(meterRegistry, "connections-per-ip");
+
+        Gauge.builder("grpc.server.connections", connections, AtomicInteger::get)
+            .description("Admitted connections")
+            .register(meterRegistry);
+    }
+
+
+    /**
+     * Count new connection
+     * @return false if connection is over limit and should be closed (it is not counted then)
+     */
+    public boolean acquire(SocketAddress remote) {
+
+        if (connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            connections.decrementAndGet();
+            rejected.increment();
+            log.debug("Connection rejected, max-connections reached");
+            return false;
+        }
+
+        InetAddress ip = getIp(remote);
+        if (ip != null) {
+            int count = ipConnections.compute(ip, (key, counter) -> {
+                if (counter == null) {
+                    counter = new AtomicInteger();
+                }
+                counter.incrementAndGet();
+                return counter;
+            }).get();
+
+            if (count > maxConnectionsPerIp && maxConnectionsPerIp > 0) {
+                release(ip);
+                connections.decrementAndGet();
+                rejectedPerIp.increment();
+                log.debug("Connection from {} rejected, max-connections-per-ip reached", ip);
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Connection acquired before is closed
+     */
+    public void release(SocketAddress remote) {
+
+        InetAddress ip = getIp(remote);
+        if (ip != null) {
+            release(ip);
+        }
+        connections.decrementAndGet();
+    }
+
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private void release(InetAddress ip) {
+        ipConnections.computeIfPresent(ip, (key, counter) -> counter.decrementAndGet() == 0 ? null : counter);
+    }
+
+
+    private static InetAddress getIp(SocketAddress address) {
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+    }
+}
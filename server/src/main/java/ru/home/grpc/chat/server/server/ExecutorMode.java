@@ -0,0 +1,32 @@
+package ru.home.grpc.chat.server.server;
+
+/**
+ * Where grpc runs service methods and stream callbacks (grpc.server.executor.mode)
+ */
+public enum ExecutorMode {
+
+    /**
+     * grpc default - shared unbounded cached thread pool
+     */
+    DEFAULT,
+
+    /**
+     * Bounded ForkJoinPool (async mode), grpc.server.executor.threads
+     */
+    FORK_JOIN,
+
+    /**
+     * Run in netty event loop threads, no thread hop per message.
+     * <br> Service methods mostly do not block (auth is on authExecutor,
+     * outbound on outboundExecutor, peer links are async, segment flush is on MessageLog flusher),
+     * but not entirely: MessageLog.append() creates and maps next segment file when current one is full
+     * (once per grpc.server.log.segment-size bytes) and waits if 1024 appends are in flight.
+     * Then all connections of event loop stall, use other mode if log disk is slow
+     */
+    DIRECT,
+
+    /**
+     * Thread per call on virtual threads (java 21+), falls back to FORK_JOIN on older jvm
+     */
+    VIRTUAL
+}
@@ -0,0 +1,283 @@
+package ru.home.grpc.chat.server.server;
+
+import io.grpc.netty.GrpcHttp2ConnectionHandler;
+import io.grpc.netty.InternalProtocolNegotiator;
+import io.grpc.netty.InternalProtocolNegotiators;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionDecoder;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameListener;
+import io.netty.handler.codec.http2.Http2FrameListenerDecorator;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.home.grpc.chat.server.configuration.KeepAliveProperties;
+
+import java.lang.invoke.MethodHandles;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plaintext negotiator that also admits connections and watches their HTTP/2 frames:
+ * <br> connection over ConnectionLimiter limits is closed before negotiation
+ * <br> counts PING frames (KeepAliveStats)
+ * <br> adaptive keepalive - pings connection itself instead of grpc KeepAliveManager
+ * (which pings every connection at fixed interval), see KeepAliveProperties.adaptive
+ * <br> Uses grpc-netty internal api (the only per-connection hook in grpc 1.27)
+ */
+class KeepAliveNegotiator implements InternalProtocolNegotiator.ProtocolNegotiator {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // grpc server keepalive ping payload (NettyServerHandler.KEEPALIVE_PING)
+    private static final long GRPC_PING_DATA = 0xDEADL;
+
+    // adaptive keepalive ping payload, differs from grpc ones
+    private static final long PING_DATA = 0xC4A7L;
+
+    private final InternalProtocolNegotiator.ProtocolNegotiator delegate = InternalProtocolNegotiators.serverPlaintext();
+
+    private final KeepAliveStats stats;
+
+    private final ConnectionLimiter connectionLimiter;
+
+    private final boolean adaptive;
+    private final long time;
+    private final long maxTime;
+    private final long timeout;
+
+
+    KeepAliveNegotiator(KeepAliveProperties properties, KeepAliveStats stats, ConnectionLimiter connectionLimiter) {
+
+        this.stats = stats;
+        this.connectionLimiter = connectionLimiter;
+        this.adaptive = properties.isAdaptive();
+        this.time = properties.getTime().toNanos();
+        this.maxTime = properties.getMaxTime().toNanos();
+        this.timeout = properties.getTimeout().toNanos();
+    }
+
+
+    @Override
+    public AsciiString scheme() {
+        return delegate.scheme();
+    }
+
+
+    @Override
+    public ChannelHandler newHandler(GrpcHttp2ConnectionHandler grpcHandler) {
+
+        Http2ConnectionDecoder decoder = grpcHandler.decoder();
+        Pinger pinger = adaptive ? new Pinger(grpcHandler) : null;
+
+        decoder.frameListener(new Listener(decoder.frameListener(), pinger));
+
+        ChannelHandler negotiationHandler = delegate.newHandler(grpcHandler);
+
+        // admit connection and start pinger on connection event loop, then get out of the way
+        return new ChannelInboundHandlerAdapter() {
+            @Override
+            public void handlerAdded(ChannelHandlerContext ctx) {
+
+                Channel channel = ctx.channel();
+                SocketAddress remote = channel.remoteAddress();
+                if (!connectionLimiter.acquire(remote)) {
+                    ctx.close();
+                    return;
+                }
+                channel.closeFuture().addListener(f -> connectionLimiter.release(remote));
+
+                ctx.pipeline().replace(this, null, negotiationHandler);
+                if (pinger != null) {
+                    pinger.start(channel);
+                }
+            }
+        };
+    }
+
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private class Listener extends Http2FrameListenerDecorator {
+
+        // null - not adaptive
+        private final Pinger pinger;
+
+        Listener(Http2FrameListener listener, Pinger pinger) {
+            super(listener);
+            this.pinger = pinger;
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
+                              boolean endOfStream) throws Http2Exception {
+            onRead();
+            return super.onDataRead(ctx, streamId, data, padding, endOfStream);
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int padding,
+                                  boolean endStream) throws Http2Exception {
+            onRead();
+            super.onHeadersRead(ctx, streamId, headers, padding, endStream);
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers, int streamDependency,
+                                  short weight, boolean exclusive, int padding, boolean endStream) throws Http2Exception {
+            onRead();
+            super.onHeadersRead(ctx, streamId, headers, streamDependency, weight, exclusive, padding, endStream);
+        }
+
+        @Override
+        public void onPingRead(ChannelHandlerContext ctx, long data) throws Http2Exception {
+            stats.onReceived();
+            onRead();
+            super.onPingRead(ctx, data);
+        }
+
+        @Override
+        public void onPingAckRead(ChannelHandlerContext ctx, long data) throws Http2Exception {
+
+            if (pinger != null && data == PING_DATA) {
+                // own ping, grpc would complain about unexpected ack
+                stats.onAnswered();
+                pinger.onAck();
+                return;
+            }
+
+            if (data == GRPC_PING_DATA) {
+                stats.onAnswered();
+            }
+            super.onPingAckRead(ctx, data);
+        }
+
+        private void onRead() {
+            if (pinger != null) {
+                pinger.onRead();
+            }
+        }
+    }
+
+
+    /**
+     * Adaptive keepalive of one connection, runs on connection event loop
+     */
+    private class Pinger {
+
+        private final GrpcHttp2ConnectionHandler handler;
+
+        private Channel channel;
+
+        // current ping interval, nanos
+        private long interval = time;
+
+        // last frame from client
+        private long lastRead;
+
+        private boolean pingOutstanding;
+
+        // next ping or ping timeout
+        private ScheduledFuture<?> future;
+
+
+        Pinger(GrpcHttp2ConnectionHandler handler) {
+            this.handler = handler;
+        }
+
+
+        void start(Channel channel) {
+
+            this.channel = channel;
+            lastRead = System.nanoTime();
+            schedule(interval);
+
+            channel.closeFuture().addListener(f -> future.cancel(false));
+        }
+
+
+        void onRead() {
+            lastRead = System.nanoTime();
+        }
+
+
+        void onAck() {
+
+            if (!pingOutstanding) {
+                return;
+            }
+            pingOutstanding = false;
+            future.cancel(false);
+
+            // chat stream is open - client is alive and will stay, ping less often;
+            // without streams - back to base interval (idle connection is closed by max-connection-idle)
+            if (handler.connection().numActiveStreams() > 0) {
+                interval = Math.min(interval * 2, maxTime);
+            }
+            else {
+                interval = time;
+            }
+
+            schedule(interval);
+        }
+
+
+        private void schedule(long delay) {
+            future = channel.eventLoop().schedule(this::ping, delay, TimeUnit.NANOSECONDS);
+        }
+
+
+        private void ping() {
+
+            if (!channel.isActive()) {
+                return;
+            }
+
+            // client has sent something meanwhile, no need to ping
+            long idle = System.nanoTime() - lastRead;
+            if (idle < interval) {
+                schedule(interval - idle);
+                return;
+            }
+
+            ChannelHandlerContext ctx = channel.pipeline().context(handler);
+            if (ctx == null) {
+                // negotiation not finished yet
+                schedule(interval);
+                return;
+            }
+
+            pingOutstanding = true;
+            handler.encoder().writePing(ctx, false, PING_DATA, ctx.newPromise());
+            ctx.flush();
+            stats.onSent();
+
+            future = channel.eventLoop().schedule(this::onTimeout, timeout, TimeUnit.NANOSECONDS);
+        }
+
+
+        private void onTimeout() {
+
+            if (!pingOutstanding) {
+                return;
+            }
+
+            stats.onTimeout();
+            log.debug("Keepalive ping not answered, closing connection {}", channel.remoteAddress());
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ru.home.grpc.chat.server.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/2 PING counters of all connections, to tune keepalive settings
+ */
+public class KeepAliveStats {
+
+    // client keepalive pings
+    private final LongAdder received = new LongAdder();
+
+    // server keepalive pings answered by clients
+    private final LongAdder answered = new LongAdder();
+
+    // adaptive keepalive only (grpc keepalive pings are seen only when answered)
+    private final LongAdder sent = new LongAdder();
+
+    // connections closed because ping was not answered, adaptive keepalive only
+    private final LongAdder timeouts = new LongAdder();
+
+
+    void onReceived() {
+        received.increment();
+    }
+
+    void onAnswered() {
+        answered.increment();
+    }
+
+    void onSent() {
+        sent.increment();
+    }
+
+    void onTimeout() {
+        timeouts.increment();
+    }
+
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getAnswered() {
+        return answered.sum();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+
+    @Override
+    public String toString() {
+        return "pings received: " + getReceived() +
+            ", sent: " + getSent() +
+            ", answered: " + getAnswered() +
+            ", timeouts: " + getTimeouts();
+    }
+}
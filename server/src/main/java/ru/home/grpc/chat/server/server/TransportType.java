@@ -0,0 +1,22 @@
+package ru.home.grpc.chat.server.server;
+
+/**
+ * Netty channel implementation (grpc.server.transport.type)
+ */
+public enum TransportType {
+
+    /**
+     * EPOLL if available, else NIO
+     */
+    AUTO,
+
+    /**
+     * Native linux transport, fewer syscalls and no selector garbage, fails to start if not available
+     */
+    EPOLL,
+
+    /**
+     * java nio, any platform
+     */
+    NIO
+}
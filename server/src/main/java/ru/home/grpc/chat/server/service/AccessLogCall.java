@@ -0,0 +1,46 @@
+package ru.home.grpc.chat.server.service;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sampled call, writes one access log line when call is closed
+ * <br> rpc, status, login (never credentials), peer, duration
+ * <br> Logger: ru.home.grpc.chat.server.access
+ */
+class AccessLogCall<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+    static final Logger ACCESS_LOG = LoggerFactory.getLogger("ru.home.grpc.chat.server.access");
+
+    private final String methodName;
+    private final long started = System.nanoTime();
+
+    private volatile String login;
+
+    AccessLogCall(ServerCall<ReqT, RespT> delegate, String methodName) {
+        super(delegate);
+        this.methodName = methodName;
+    }
+
+    void setLogin(String login) {
+        this.login = login;
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+
+        ACCESS_LOG.info("rpc={} status={} login={} peer={} time={}us",
+            methodName,
+            status.getCode(),
+            login,
+            getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR),
+            (System.nanoTime() - started) / 1000);
+
+        super.close(status, trailers);
+    }
+}
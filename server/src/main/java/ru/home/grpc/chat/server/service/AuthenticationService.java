@@ -0,0 +1,16 @@
+package ru.home.grpc.chat.server.service;
+
+/**
+ * Verifies login/password
+ * <br> Implementation is selected by grpc.server.auth.store:
+ * <br> demo - any login with password "1" (default)
+ * <br> file - bcrypt hashes from grpc.server.auth.users-file
+ * <br> May be slow (password hashing), called on authExecutor only, never on grpc/netty threads
+ */
+public interface AuthenticationService {
+
+    /**
+     * @return true if password is valid for login
+     */
+    boolean authenticate(String login, String password);
+}
@@ -1,46 +1,335 @@
 package ru.home.grpc.chat.server.service;
 
 import com.google.protobuf.Timestamp;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
-import org.apache.commons.codec.digest.DigestUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import ru.home.grpc.chat.*;
+import ru.home.grpc.chat.server.cluster.MessageBus;
 import ru.home.grpc.chat.server.entities.Client;
-import ru.home.grpc.chat.server.entities.ClientList;
+import ru.home.grpc.chat.server.server.AdmissionInterceptor;
 import ru.home.grpc.chat.server.utils.Credentials;
+import ru.home.grpc.chat.server.utils.TokenBucket;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.lang.invoke.MethodHandles;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.time.Instant;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
-
-import static org.apache.commons.codec.digest.MessageDigestAlgorithms.SHA_256;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static ru.home.grpc.chat.server.service.SessionRegistry.DEFAULT_ROOM;
 import static ru.home.grpc.chat.server.utils.Headers.CLIENT_BASIC_CONTEXT_KEY;
-import static ru.home.grpc.chat.server.utils.Headers.CLIENT_TOKEN_CONTEXT_KEY;
+import static ru.home.grpc.chat.server.utils.Headers.CLIENT_CONTEXT_KEY;
+import static ru.home.grpc.chat.server.utils.Headers.PEER_CONTEXT_KEY;
 
 
+@Service
 public class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
 
     private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    // Contains all current connected clients (singleton)
-    private Map<String, Client> clientList = ClientList.INSTANCE.clientList;
+    // chat rpc that sends pre-serialized ServerMessages (same wire format as generated one)
+    private static final MethodDescriptor<ClientMessage, SerializedMessage> CHAT_METHOD =
+        ChatServiceGrpc.getChatMethod().toBuilder(
+            ChatServiceGrpc.getChatMethod().getRequestMarshaller(),
+            SerializedMessage.MARSHALLER)
+            .build();
+
+    // chatBatch rpc, ServerMessageBatch is assembled from pre-serialized ServerMessages
+    private static final MethodDescriptor<ClientMessageBatch, SerializedMessage> CHAT_BATCH_METHOD =
+        ChatServiceGrpc.getChatBatchMethod().toBuilder(
+            ChatServiceGrpc.getChatBatchMethod().getRequestMarshaller(),
+            SerializedMessage.MARSHALLER)
+            .build();
+
+    // history rpc that sends pre-serialized ServerMessages
+    private static final MethodDescriptor<HistoryRequest, SerializedMessage> HISTORY_METHOD =
+        ChatServiceGrpc.getHistoryMethod().toBuilder(
+            ChatServiceGrpc.getHistoryMethod().getRequestMarshaller(),
+            SerializedMessage.MARSHALLER)
+            .build();
+
+    // inbound observer for rejected chat calls
+    private static final StreamObserver<ClientMessage> NOOP_OBSERVER = new StreamObserver<ClientMessage>() {
+        @Override public void onNext(ClientMessage value) {}
+        @Override public void onError(Throwable t) {}
+        @Override public void onCompleted() {}
+    };
+
+    // Contains all current connected clients
+    private SessionRegistry registry;
+
+    private TokenService tokenService;
+
+    // fan-out to all nodes
+    private MessageBus messageBus;
+
+    // broadcast history for resume
+    private MessageLog messageLog;
+
+    // recent room messages
+    private RoomHistory roomHistory;
+
+    // drains clients outbound queues
+    private Executor outboundExecutor;
+
+    private AuthenticationService authenticationService;
+
+    // per stream/login message limits, per login authentication limit
+    private RateLimiter rateLimiter;
+
+    // verifies passwords
+    private Executor authExecutor;
+
+    // overload response (UNAVAILABLE with retry hint) when authExecutor is full
+    private AdmissionInterceptor admissionInterceptor;
+
+    // delays drain of chatBatch streams for batch window
+    private ScheduledExecutorService batchScheduler;
+
+    private MeterRegistry meterRegistry;
+
+    // authenticate rpc results
+    private Counter authSuccess;
+    private Counter authFailure;
+    private Counter authRejected;
+
+    // fan-out of one message to local clients: log append and enqueue to all recipients
+    private Timer deliverTimer;
+
+    // dropped by outbound queues of already disconnected clients
+    private final LongAdder droppedClosed = new LongAdder();
+
+    @Value("${grpc.server.outbound.queue-capacity:1024}")
+    private int outboundCapacity;
+
+    @Value("${grpc.server.outbound.slow-consumer-policy:DROP_OLDEST}")
+    private SlowConsumerPolicy slowConsumerPolicy;
+
+    @Value("${grpc.server.outbound.batch.enabled:true}")
+    private boolean batchEnabled;
+
+    @Value("${grpc.server.outbound.batch.window-ms:2}")
+    private int batchWindow;
+
+    @Value("${grpc.server.outbound.batch.max-messages:64}")
+    private int batchMaxMessages;
+
+    @Autowired
+    public void setRegistry(SessionRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Autowired
+    public void setTokenService(TokenService tokenService) {
+        this.tokenService = tokenService;
+    }
+
+    @Autowired
+    public void setMessageBus(MessageBus messageBus) {
+        this.messageBus = messageBus;
+    }
+
+    @Autowired
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    @Autowired
+    public void setRoomHistory(RoomHistory roomHistory) {
+        this.roomHistory = roomHistory;
+    }
+
+    @Autowired
+    public void setAuthenticationService(AuthenticationService authenticationService) {
+        this.authenticationService = authenticationService;
+    }
+
+    @Autowired
+    public void setAuthExecutor(@Qualifier("authExecutor") Executor authExecutor) {
+        this.authExecutor = authExecutor;
+    }
+
+    @Autowired
+    public void setAdmissionInterceptor(AdmissionInterceptor admissionInterceptor) {
+        this.admissionInterceptor = admissionInterceptor;
+    }
+
+    @Autowired
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Autowired
+    public void setOutboundExecutor(@Qualifier("outboundExecutor") Executor outboundExecutor) {
+        this.outboundExecutor = outboundExecutor;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        Assert.isTrue(batchWindow >= 0, "batch.window-ms should be >= 0");
+        Assert.isTrue(batchMaxMessages > 0, "batch.max-messages should be > 0");
+
+        // only schedules drain on outboundExecutor, one thread is enough
+        ScheduledThreadPoolExecutor scheduler =
+            new ScheduledThreadPoolExecutor(1, new DefaultThreadFactory("BatchWindow", true));
+        scheduler.setRemoveOnCancelPolicy(true);
+        batchScheduler = scheduler;
+
+        registerMetrics();
+
+        messageBus.subscribe(this::deliver);
+    }
+
+
+    @PreDestroy
+    public void preDestroy() {
+        batchScheduler.shutdownNow();
+    }
+
+
+    /**
+     * Hot path only increments counters, gauges over registry and outbound queues are computed on scrape
+     */
+    private void registerMetrics() {
+
+        authSuccess = authCounter("success");
+        authFailure = authCounter("failure");
+        authRejected = authCounter("rejected");
+
+        deliverTimer = Timer.builder("chat.deliver")
+            .description("Fan-out of message to local clients")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+
+        Gauge.builder("chat.sessions", registry, SessionRegistry::getPendingCount)
+            .description("Authenticated clients")
+            .tag("state", "pending")
+            .register(meterRegistry);
+
+        Gauge.builder("chat.sessions", registry, SessionRegistry::getStreamingCount)
+            .description("Authenticated clients")
+            .tag("state", "streaming")
+            .register(meterRegistry);
+
+        Gauge.builder("chat.rooms", registry, r -> r.getRooms().size())
+            .description("Rooms having local members")
+            .register(meterRegistry);
+
+        Gauge.builder("chat.outbound.queued", this, ChatService::getOutboundQueued)
+            .description("Messages waiting in outbound queues of all clients")
+            .register(meterRegistry);
+
+        Gauge.builder("chat.outbound.queue.max", this, ChatService::getOutboundQueueMax)
+            .description("Deepest outbound queue")
+            .register(meterRegistry);
+
+        FunctionCounter.builder("chat.outbound.dropped", this, ChatService::getOutboundDropped)
+            .description("Messages dropped by outbound queues (slow consumers)")
+            .register(meterRegistry);
+    }
+
+
+    private Counter authCounter(String result) {
+
+        return Counter.builder("chat.auth")
+            .description("Authentication results")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
 
-    private SecureRandom secureRandom;
+    private double getOutboundQueued() {
 
-    private AtomicLong idAtomic = new AtomicLong();
+        LongAdder result = new LongAdder();
+        registry.forEachStreaming(client -> result.add(outboundSize(client)));
+        return result.sum();
+    }
+
+
+    private double getOutboundQueueMax() {
+
+        int[] result = new int[1];
+        registry.forEachStreaming(client -> result[0] = Math.max(result[0], outboundSize(client)));
+        return result[0];
+    }
+
+
+    private double getOutboundDropped() {
+
+        LongAdder result = new LongAdder();
+        result.add(droppedClosed.sum());
+        registry.forEachStreaming(client -> {
+            OutboundQueue outbound = client.getOutbound();
+            if (outbound != null) {
+                result.add(outbound.getDropped());
+            }
+        });
+        return result.sum();
+    }
 
-    private ReentrantLock lock = new ReentrantLock();
 
-    public ChatService() throws NoSuchAlgorithmException {
+    private static int outboundSize(Client client) {
 
-        secureRandom = SecureRandom.getInstance("NativePRNG");
+        OutboundQueue outbound = client.getOutbound();
+        return outbound == null ? 0 : outbound.size();
+    }
+
+
+    /**
+     * Service definition where generated chat/chatBatch/history methods replaced with serialized ones
+     * <br> Use it instead of bindService()
+     */
+    public ServerServiceDefinition bindSerializedService() {
+
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(ChatServiceGrpc.SERVICE_NAME);
+
+        for (ServerMethodDefinition<?, ?> method : bindService().getMethods()) {
+            String name = method.getMethodDescriptor().getFullMethodName();
+            if (!name.equals(CHAT_METHOD.getFullMethodName()) &&
+                !name.equals(CHAT_BATCH_METHOD.getFullMethodName()) &&
+                !name.equals(HISTORY_METHOD.getFullMethodName())) {
+                builder.addMethod(method);
+            }
+        }
+        builder.addMethod(CHAT_METHOD, ServerCalls.asyncBidiStreamingCall(this::serializedChat));
+        builder.addMethod(CHAT_BATCH_METHOD, ServerCalls.asyncBidiStreamingCall(this::serializedChatBatch));
+        builder.addMethod(HISTORY_METHOD, ServerCalls.asyncServerStreamingCall(this::serializedHistory));
+
+        return builder.build();
     }
 
 
@@ -50,7 +339,15 @@ public class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
     @Override
     public void ping(Ping request, StreamObserver<Ping> responseObserver) {
 
-        Ping response = Ping.newBuilder().setAck(true).build();
+        Ping response;
+
+        // heartbeat of cluster node
+        if (!request.getNode().isEmpty() && PEER_CONTEXT_KEY.get() != null) {
+            response = messageBus.gossip(request);
+        }
+        else {
+            response = Ping.newBuilder().setAck(true).build();
+        }
         responseObserver.onNext(response);
         responseObserver.onCompleted();
     }
@@ -61,22 +358,81 @@ public class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
     public void authenticate(AuthRequest request, StreamObserver<AuthResponse> responseObserver) {
 
         Credentials credentials = getCredentials();
+
+        if (!rateLimiter.tryAuthenticate(credentials.getLogin(), credentials.getRemoteAddress())) {
+            log.debug("Authentication of '{}' rejected, rate limit", credentials.getLogin());
+            responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                .withDescription("Too many authentications, try later")
+                .asRuntimeException());
+            return;
+        }
+
+        // password hashing is slow, do not block grpc threads
+        try {
+            authExecutor.execute(() -> verify(credentials, responseObserver));
+        }
+        catch (RejectedExecutionException e) {
+            authRejected.increment();
+            log.debug("Authentication rejected, authExecutor is full");
+            responseObserver.onError(admissionInterceptor.unavailable("Server is busy, try later"));
+        }
+    }
+
+
+    /**
+     * Runs on authExecutor
+     */
+    private void verify(Credentials credentials, StreamObserver<AuthResponse> responseObserver) {
+
         String login = credentials.getLogin();
 
-        // multiply login from same account enabled
-        // will allow simultaneously authenticate several clients with same login/password
-        // to prevent this need to have index on client.login
-        String token = generateToken();
+        try {
+            boolean valid = authenticationService.authenticate(login, credentials.getPassword());
 
-        Client client = new Client(login, token);
-        clientList.put(token, client);
+            // clear password
+            credentials.setPassword(null);
 
-        //log.info("Client '{}' has authenticated", login);
+            if (!valid) {
+                authFailure.increment();
+                log.debug("Client '{}' not authenticated", login);
+                responseObserver.onError(Status.UNAUTHENTICATED.withDescription("Not authenticated").asRuntimeException());
+                return;
+            }
 
-        AuthResponse response = AuthResponse.newBuilder()
-            .setToken(token)
-            .build();
-        responseObserver.onNext(response);
+            // multiply login from same account enabled
+            // will allow simultaneously authenticate several clients with same login/password
+            // (registry.getByLogin() may be used to prevent this)
+            String token = tokenService.issue(login);
+            authSuccess.increment();
+
+            log.debug("Client '{}' has authenticated", login);
+
+            AuthResponse response = AuthResponse.newBuilder()
+                .setToken(token)
+                .setBatch(batchEnabled)
+                .build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+        catch (RuntimeException e) {
+            // call cancelled meanwhile
+            log.debug("Failed to complete authentication", e);
+        }
+    }
+
+
+    // -------------------------------------------------------------------------------------------
+
+
+    /**
+     * Last messages of room from RoomHistory, oldest first
+     * <br> Count is bounded by history size, so sent without flow control
+     */
+    public void serializedHistory(HistoryRequest request, StreamObserver<SerializedMessage> responseObserver) {
+
+        for (SerializedMessage message : roomHistory.last(request.getRoom(), request.getLimit())) {
+            responseObserver.onNext(message);
+        }
         responseObserver.onCompleted();
     }
 
@@ -84,83 +440,400 @@ public class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
     // -------------------------------------------------------------------------------------------
 
 
-    @Override
-    public StreamObserver<ClientMessage> chat(StreamObserver<ServerMessage> responseObserver) {
+    public StreamObserver<ClientMessage> serializedChat(StreamObserver<SerializedMessage> responseObserver) {
+        return openChat(responseObserver, false);
+    }
+
+
+    /**
+     * Same as chat, outgoing messages are coalesced within batch window to ServerMessageBatch,
+     * incoming ClientMessageBatch is handled message by message
+     */
+    public StreamObserver<ClientMessageBatch> serializedChatBatch(StreamObserver<SerializedMessage> responseObserver) {
+
+        if (!batchEnabled) {
+            responseObserver.onError(Status.UNIMPLEMENTED.withDescription("Batch mode disabled").asRuntimeException());
+            return new BatchSession(NOOP_OBSERVER);
+        }
+        return new BatchSession(openChat(responseObserver, true));
+    }
+
+
+    private StreamObserver<ClientMessage> openChat(StreamObserver<SerializedMessage> responseObserver, boolean batch) {
 
         Client client = getClient();
 
-        Assert.isNull(client.getChatObserver(), "client.getChatObserver() != null");
+        // PENDING -> STREAMING, fails if token expired meanwhile or chat stream already opened
+        if (!registry.bind(client)) {
+            responseObserver.onError(Status.UNAUTHENTICATED.withDescription("Not authenticated").asRuntimeException());
+            return NOOP_OBSERVER;
+        }
+
+        // deliver messages only when transport is ready to send them
+        ServerCallStreamObserver<SerializedMessage> serverObserver =
+            (ServerCallStreamObserver<SerializedMessage>)responseObserver;
+
+        OutboundQueue outbound = new OutboundQueue(serverObserver, outboundExecutor,
+            outboundCapacity, slowConsumerPolicy, () -> disconnect(client));
+        if (batch) {
+            outbound.batching(batchScheduler, batchWindow, batchMaxMessages);
+        }
+        client.setOutbound(outbound);
         client.setChatObserver(responseObserver);
 
+        registry.join(DEFAULT_ROOM, client);
+
         String msg = String.format("Client '%1$s' has entered the chat", client.getLogin());
         log.info(msg);
         broadcast(buildServerMessage("server", msg));
 
 
-        return new StreamObserver<ClientMessage>() {
+        return new Session(client);
+    }
 
-            @Override
-            public void onNext(ClientMessage chatMessage) {
 
-                Client client = getClient();
+    /**
+     * Inbound side of chat stream
+     * <br> Client is resolved once per stream, per-message path does no lookups
+     * <br> Stream exceeding rate limit is closed with RESOURCE_EXHAUSTED
+     */
+    private final class Session implements StreamObserver<ClientMessage> {
 
-                log.info("From {}: {}", client.getLogin(), chatMessage.getMessage());
+        private final Client client;
+        private final OutboundQueue outbound;
 
-                ServerMessage serverMessage = buildServerMessage(client.getLogin(), chatMessage.getMessage());
+        // null - not limited
+        private final TokenBucket bucket;
+        private final TokenBucket controlBucket;
+
+        Session(Client client) {
+            this.client = client;
+            this.outbound = client.getOutbound();
+            this.bucket = rateLimiter.newStreamBucket();
+            this.controlBucket = rateLimiter.newControlBucket();
+        }
 
-                broadcast(serverMessage);
+        @Override
+        public void onNext(ClientMessage chatMessage) {
+
+            // client has been disconnected by server, ignore
+            if (outbound.isClosed()) {
+                return;
+            }
+
+            if (!tryAcquire(chatMessage.getAction())) {
+                log.debug("Client '{}' exceeded rate limit, disconnecting", client.getLogin());
+                outbound.disconnect(Status.RESOURCE_EXHAUSTED.withDescription("Too many messages"));
+                return;
             }
 
-            @Override
-            public void onError(Throwable throwable) {
+            switch (chatMessage.getAction()) {
+
+                case JOIN:
+                    join(client, chatMessage.getRoom());
+                    break;
 
-                log.debug("gRPC error: ", throwable);
+                case LEAVE:
+                    leave(client, chatMessage.getRoom());
+                    break;
 
-                Client client = getClient();
-                clientList.remove(client.getToken());
+                case DIRECT:
+                    direct(client, chatMessage.getTo(), chatMessage.getMessage());
+                    break;
 
-                String msg = String.format("Disconnected: '%1$s'", client.getLogin());
-                log.info(msg);
-                broadcast(buildServerMessage("server", msg));
+                case RESUME:
+                    resume(client, chatMessage.getSeq());
+                    break;
+
+                case MESSAGE:
+                default:
+                    message(client, chatMessage.getRoom(), chatMessage.getMessage());
+                    break;
             }
+        }
 
-            @Override
-            public void onCompleted() {
+        /**
+         * Control actions have own budget, so reconnect is not limited by chat traffic
+         */
+        private boolean tryAcquire(ClientMessage.Action action) {
 
-                Client client = getClient();
-                clientList.remove(client.getToken());
+            switch (action) {
+                case JOIN:
+                case LEAVE:
+                case RESUME:
+                    return rateLimiter.tryControl(controlBucket);
 
-                String msg = String.format("Disconnected: '%1$s'", client.getLogin());
-                log.info(msg);
-                broadcast(buildServerMessage("server", msg));
+                default:
+                    return rateLimiter.tryMessage(client, bucket);
             }
+        }
 
-        };
+        @Override
+        public void onError(Throwable throwable) {
+
+            log.debug("gRPC error: ", throwable);
+            // client may be already removed (disconnected as slow consumer)
+            disconnect(client);
+        }
+
+        /**
+         * Client has half-closed stream - complete it too (frees the call), then disconnect client
+         */
+        @Override
+        public void onCompleted() {
+
+            if (!outbound.complete()) {
+                // already closed by server
+                disconnect(client);
+            }
+        }
+    }
+
+
+    /**
+     * Inbound side of chatBatch stream
+     */
+    private static final class BatchSession implements StreamObserver<ClientMessageBatch> {
+
+        private final StreamObserver<ClientMessage> session;
+
+        BatchSession(StreamObserver<ClientMessage> session) {
+            this.session = session;
+        }
+
+        @Override
+        public void onNext(ClientMessageBatch batch) {
+
+            for (ClientMessage message : batch.getMessagesList()) {
+                session.onNext(message);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            session.onError(throwable);
+        }
+
+        @Override
+        public void onCompleted() {
+            session.onCompleted();
+        }
     }
 
 
     // --------------------------------------------------------------------------------------
 
-    private void broadcast(ServerMessage serverMessage) {
+    private void message(Client client, String room, String message) {
 
-        // StreamObserver not thread-safe
+        if (!client.getRooms().contains(room)) {
+            notify(client, room, String.format("You are not in room '%1$s'", room));
+            return;
+        }
 
-        try {
-            lock.lock();
+        // per-message, avoid varargs allocation when disabled
+        if (log.isDebugEnabled()) {
+            log.debug("From {} to '{}': {}", client.getLogin(), room, message);
+        }
+        broadcast(buildServerMessage(room, client.getLogin(), message));
+    }
 
-            // Synchronized broadcast to all connected clients
-            for (Map.Entry<String, Client> entry : clientList.entrySet()) {
 
-                Client client = entry.getValue();
+    private void join(Client client, String room) {
 
-                if (client.getChatObserver() == null) {
-                    continue;
-                }
-                client.getChatObserver().onNext(serverMessage);
-            }
+        if (client.getRooms().contains(room)) {
+            return;
+        }
+
+        registry.join(room, client);
+
+        // disconnected concurrently (slow consumer)
+        if (client.getOutbound().isClosed()) {
+            registry.leave(room, client);
+            return;
+        }
+
+        String msg = String.format("Client '%1$s' has joined room '%2$s'", client.getLogin(), room);
+        log.info(msg);
+        broadcast(buildServerMessage(room, "server", msg));
+    }
+
+
+    private void leave(Client client, String room) {
+
+        if (!client.getRooms().contains(room)) {
+            return;
+        }
+
+        // leaving client will see his own message too
+        String msg = String.format("Client '%1$s' has left room '%2$s'", client.getLogin(), room);
+        log.info(msg);
+        broadcast(buildServerMessage(room, "server", msg));
+
+        registry.leave(room, client);
+    }
+
+
+    /**
+     * Private message to all chat streams of login, echoed to streams of sender
+     * <br> In cluster presence of recipient is unknown, offline recipient is not reported
+     */
+    private void direct(Client client, String to, String message) {
+
+        if (!messageBus.isClustered() && !registry.isOnline(to)) {
+            notify(client, DEFAULT_ROOM, String.format("Client '%1$s' is offline", to));
+            return;
         }
-        finally {
-            lock.unlock();
+
+        if (log.isDebugEnabled()) {
+            log.debug("From {} to {}: {}", client.getLogin(), to, message);
+        }
+
+        broadcast(ServerMessage.newBuilder(
+            buildServerMessage(client.getLogin(), message))
+            .setTo(to)
+            .build());
+    }
+
+
+    /**
+     * Replay logged messages client missed while reconnecting
+     * <br> Client should send RESUME after re-joining rooms: replayed are messages
+     * to rooms client is in now and private messages to/from client
+     * <br> If part of missed messages is deleted by log retention client gets history gap notice
+     * <br> Seqs are per node, RESUME with seq of other node (client has reconnected to other
+     * cluster node) is rejected with notice - messages missed can not be found in local log
+     */
+    private void resume(Client client, long afterSeq) {
+
+        OutboundQueue outbound = client.getOutbound();
+
+        // replay up to messages already delivered live on this stream
+        long firstLive = outbound.getFirstLiveSeq();
+        long until = firstLive > 0 ? firstLive - 1 : messageLog.getLastSeq();
+
+        // nothing received on previous stream (if any) - nothing to resume
+        if (afterSeq == 0) {
+            return;
+        }
+
+        if (!messageLog.isOwn(afterSeq)) {
+            String msg = "History gap: resumed on other server, messages sent while reconnecting may be missed";
+            log.debug("Client '{}' resumes from seq {} of other node", client.getLogin(), afterSeq);
+            notify(client, DEFAULT_ROOM, msg);
+            return;
+        }
+
+        if (afterSeq >= until) {
+            return;
+        }
+
+        log.debug("Client '{}' resumes from {} to {}", client.getLogin(), afterSeq, until);
+
+        if (messageLog.isGap(afterSeq)) {
+            String msg = String.format("History gap: messages %1$d..%2$d are no longer available, " +
+                "some of them may be missed", afterSeq + 1, messageLog.getFirstSeq() - 1);
+            log.debug("Client '{}': {}", client.getLogin(), msg);
+            notify(client, DEFAULT_ROOM, msg);
+        }
+
+        String login = client.getLogin();
+        outbound.replay(messageLog.read(afterSeq, until, (room, from, to) ->
+            to.isEmpty() ? client.getRooms().contains(room) : to.equals(login) || from.equals(login)), until);
+    }
+
+
+    /**
+     * Send server message to one client only
+     */
+    private void notify(Client client, String room, String message) {
+        client.getOutbound().offer(SerializedMessage.of(buildServerMessage(room, "server", message)));
+    }
+
+
+    /**
+     * Remove client and notify others in rooms client was in
+     * <br> May be called several times for same client (client gone and server dropped slow client)
+     */
+    private void disconnect(Client client) {
+
+        client.getOutbound().close();
+
+        List<String> rooms = new ArrayList<>(client.getRooms());
+
+        if (!registry.remove(client)) {
+            return;
+        }
+        droppedClosed.add(client.getOutbound().getDropped());
+
+        String msg = String.format("Disconnected: '%1$s'", client.getLogin());
+        log.info(msg);
+
+        for (String room : rooms) {
+            broadcast(buildServerMessage(room, "server", msg));
+        }
+    }
+
+
+    /**
+     * Publish message to members of its room on all nodes, do not wait for delivery
+     */
+    void broadcast(ServerMessage serverMessage) {
+        messageBus.publish(serverMessage);
+    }
+
+
+    /**
+     * MessageBus subscriber, enqueue message to local clients
+     * <br> Room message - to room members, private one - to streams of recipient and sender.
+     * Message is serialized once for all clients and written to MessageLog
+     * only if there is someone to deliver to on this node
+     */
+    private void deliver(ServerMessage serverMessage) {
+
+        String to = serverMessage.getTo();
+        String from = serverMessage.getFrom();
+
+        Set<Client> recipients;
+        Set<Client> senders;
+
+        if (to.isEmpty()) {
+            recipients = registry.getMembers(serverMessage.getRoom());
+            senders = Collections.emptySet();
+        }
+        else {
+            recipients = registry.getByLogin(to);
+            senders = to.equals(from) ? Collections.emptySet() : registry.getByLogin(from);
+        }
+
+        if (recipients.isEmpty() && senders.isEmpty()) {
+            return;
+        }
+
+        long started = System.nanoTime();
+
+        SerializedMessage message = messageLog.append(serverMessage);
+
+        offer(recipients, message);
+        offer(senders, message);
+
+        deliverTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+    }
+
+
+    private void offer(Set<Client> clients, SerializedMessage message) {
+
+        for (Client client : clients) {
+
+            OutboundQueue outbound = client.getOutbound();
+
+            // authenticated, chat stream not opened yet
+            if (outbound == null) {
+                continue;
+            }
+
+            if (!outbound.offer(message)) {
+                log.debug("Message to '{}' was not queued", client.getLogin());
+            }
         }
     }
 
@@ -179,20 +852,23 @@ public class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
      * @return @NotNull client
      */
     private Client getClient() {
-        String token = (String)CLIENT_TOKEN_CONTEXT_KEY.get();
-        Client client = clientList.get(token);
+        Client client = CLIENT_CONTEXT_KEY.get();
         Assert.notNull(client, "client == null");
         return client;
     }
 
-    private ServerMessage buildServerMessage(String from, String message) {
+    static ServerMessage buildServerMessage(String from, String message) {
+        return buildServerMessage(DEFAULT_ROOM, from, message);
+    }
 
+    static ServerMessage buildServerMessage(String room, String from, String message) {
 
         Instant now = Instant.now();
         long seconds = now.getEpochSecond();
         int  nanos = now.getNano();
 
         return ServerMessage.newBuilder()
+            .setRoom(room)
             .setFrom(from)
             .setMessage(message)
             .setTimestamp(Timestamp.newBuilder()
@@ -201,23 +877,6 @@ public class ChatService extends ChatServiceGrpc.ChatServiceImplBase {
             .build();
     }
 
-
-    private String generateToken() {
-
-        String id = Long.toString(idAtomic.getAndIncrement()) +
-                    Long.toString(Instant.now().toEpochMilli()) +
-                    Long.toString(secureRandom.nextLong());
-
-        return new DigestUtils(SHA_256).digestAsHex(id);
-    }
-
-
-    @Scheduled(fixedDelay = 10000)
-    public void deleteEmptyAuthentications() {
-        clientList.entrySet().removeIf(entry -> entry.getValue().getChatObserver() == null);
-    }
-
-
 }
 
 //private static Set<StreamObserver<ServerReply>> clients = ConcurrentHashMap.newKeySet();
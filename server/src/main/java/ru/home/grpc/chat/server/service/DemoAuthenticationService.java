@@ -0,0 +1,17 @@
+package ru.home.grpc.chat.server.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * DEMO: Authenticate with any login and password=1
+ */
+@Component
+@ConditionalOnProperty(name = "grpc.server.auth.store", havingValue = "demo", matchIfMissing = true)
+public class DemoAuthenticationService implements AuthenticationService {
+
+    @Override
+    public boolean authenticate(String login, String password) {
+        return "1".equals(password);
+    }
+}
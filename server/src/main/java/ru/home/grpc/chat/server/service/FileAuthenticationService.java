@@ -0,0 +1,169 @@
+package ru.home.grpc.chat.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.server.utils.TokenGenerator;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Users file (properties format): login=bcrypt hash
+ * <br> hash may be generated by: htpasswd -bnBC 10 "" password | tr -d ':\n'
+ * <br> Successful verifications are kept in LRU cache for grpc.server.auth.cache-ttl,
+ * so reconnect storms do not redo bcrypt. Cache keeps HMAC of password (random per-process key),
+ * not password itself
+ */
+@Component
+@ConditionalOnProperty(name = "grpc.server.auth.store", havingValue = "file")
+public class FileAuthenticationService implements AuthenticationService {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String HMAC = "HmacSHA256";
+
+    @Value("${grpc.server.auth.users-file}")
+    private String usersFile;
+
+    @Value("${grpc.server.auth.cache-size:10000}")
+    private int cacheSize;
+
+    // seconds
+    @Value("${grpc.server.auth.cache-ttl:60}")
+    private int cacheTtl;
+
+    private final BCryptPasswordEncoder encoder = new BCryptPasswordEncoder();
+
+    // login -> bcrypt hash
+    private final Map<String, String> users = new LinkedHashMap<>();
+
+    // verified for unknown logins, so response time do not reveal whether login exists
+    private String dummyHash;
+
+    private Cache cache;
+
+    private SecretKeySpec cacheKey;
+
+
+    @PostConstruct
+    public void postConstruct() throws IOException {
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(usersFile))) {
+            properties.load(in);
+        }
+        for (String login : properties.stringPropertyNames()) {
+            users.put(login, properties.getProperty(login).trim());
+        }
+        log.info("Loaded {} users from {}", users.size(), usersFile);
+
+        dummyHash = encoder.encode(TokenGenerator.generate());
+
+        byte[] keyBytes = new byte[32];
+        TokenGenerator.nextBytes(keyBytes);
+        cacheKey = new SecretKeySpec(keyBytes, HMAC);
+
+        cache = new Cache(cacheSize);
+    }
+
+
+    @Override
+    public boolean authenticate(String login, String password) {
+
+        Assert.notNull(login, "login == null");
+        Assert.notNull(password, "password == null");
+
+        byte[] digest = digest(password);
+
+        if (cache.contains(login, digest)) {
+            return true;
+        }
+
+        String hash = users.get(login);
+        boolean result = encoder.matches(password, hash != null ? hash : dummyHash) && hash != null;
+
+        if (result) {
+            cache.put(login, digest, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(cacheTtl));
+        }
+        return result;
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private byte[] digest(String password) {
+
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(cacheKey);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to init " + HMAC, e);
+        }
+    }
+
+
+    /**
+     * LRU of successful verifications: login -> password HMAC, expiration time
+     */
+    private static class Cache {
+
+        private final Map<String, Entry> map;
+
+        Cache(int size) {
+            map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > size;
+                }
+            };
+        }
+
+        synchronized boolean contains(String login, byte[] digest) {
+
+            Entry entry = map.get(login);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.expiresAt < System.currentTimeMillis()) {
+                map.remove(login);
+                return false;
+            }
+            return MessageDigest.isEqual(entry.digest, digest);
+        }
+
+        synchronized void put(String login, byte[] digest, long expiresAt) {
+            map.put(login, new Entry(digest, expiresAt));
+        }
+
+        private static class Entry {
+            final byte[] digest;
+            final long expiresAt;
+
+            Entry(byte[] digest, long expiresAt) {
+                this.digest = digest;
+                this.expiresAt = expiresAt;
+            }
+        }
+    }
+}
@@ -1,22 +1,27 @@
 package ru.home.grpc.chat.server.service;
 
 import io.grpc.*;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
+import ru.home.grpc.chat.ChatServiceGrpc;
+import ru.home.grpc.chat.server.cluster.ClusterAuthInterceptor;
 import ru.home.grpc.chat.server.entities.Client;
-import ru.home.grpc.chat.server.entities.ClientList;
 import ru.home.grpc.chat.server.utils.Credentials;
 
-
+import javax.annotation.PostConstruct;
 import java.lang.invoke.MethodHandles;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 
-import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
 import static ru.home.grpc.chat.server.utils.Headers.*;
 
 
@@ -25,16 +30,60 @@ import static ru.home.grpc.chat.server.utils.Headers.*;
 
 
 /**
- * "Authentication" emulator (require user name to participate in chat)
- * <br> ToDo:need password
- *
+ * Authentication: login/password for authenticate rpc, none for ping, token for others
  */
+@Component
 public class HeaderInterceptor implements ServerInterceptor {
 
     private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    // Contains all current connected clients (singleton)
-    private Map<String, Client> clientList = ClientList.INSTANCE.clientList;
+    private static final String AUTHENTICATE_METHOD = ChatServiceGrpc.getAuthenticateMethod().getFullMethodName();
+    private static final String PING_METHOD = ChatServiceGrpc.getPingMethod().getFullMethodName();
+
+    // resolves client from token
+    private TokenService tokenService;
+
+    // 0 - access log disabled, 1 - log every call
+    @Value("${grpc.server.access-log.sample-rate:0}")
+    private double accessLogSampleRate;
+
+    // ping with it is heartbeat of cluster node
+    @Value("${grpc.server.cluster.secret:}")
+    private String clusterSecret;
+
+    private byte[] clusterSecretBytes;
+
+    private MeterRegistry meterRegistry;
+
+    // calls without valid credentials/token
+    private Counter rejected;
+
+    private final ConcurrentMap<MethodDescriptor<?, ?>, String> methodNames = new ConcurrentHashMap<>();
+
+    @Autowired
+    public void setTokenService(TokenService tokenService) {
+        this.tokenService = tokenService;
+    }
+
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        rejected = Counter.builder("chat.auth")
+            .description("Authentication results")
+            .tag("result", "unauthenticated")
+            .register(meterRegistry);
+
+        if (!StringUtils.isEmpty(clusterSecret)) {
+            clusterSecretBytes = clusterSecret.getBytes(StandardCharsets.UTF_8);
+        }
+    }
 
     /**
      *  Authenticate, using login/password or TOKEN
@@ -45,13 +94,12 @@ public class HeaderInterceptor implements ServerInterceptor {
                                                                  ServerCallHandler<ReqT, RespT> next) {
         boolean authenticated = false;
 
-        String methodName = getMethodName(call);
-
-        // Comment out on release - reveal passwords
-        log.info("DISABLE ME ON PRODUCTION! Incoming call: {}, rpc: {}", headers, methodName);
-
-        // Will reduce performance, disable on production
-        // logIncomingCall(headers);
+        // sampled access log, nothing allocated if call is not sampled
+        AccessLogCall<ReqT, RespT> accessLogCall = null;
+        if (isSampled()) {
+            accessLogCall = new AccessLogCall<>(call, getMethodName(call.getMethodDescriptor()));
+            call = accessLogCall;
+        }
 
         Credentials credentials;
         String token;
@@ -59,39 +107,53 @@ public class HeaderInterceptor implements ServerInterceptor {
 
         // BASIC AUTH -------------------------------------------------
 
-        if ((credentials = Credentials.getCredentials(headers)) != null) {
+        // only authenticate rpc accepts login/password,
+        // password is verified there by AuthenticationService (off grpc threads)
+        if (AUTHENTICATE_METHOD.equals(call.getMethodDescriptor().getFullMethodName()) &&
+            (credentials = Credentials.getCredentials(headers)) != null) {
 
-            log.info("Authenticating client: '{}'", credentials.getLogin());
+            log.debug("Authenticating client: '{}'", credentials.getLogin());
 
-            //ToDo: implement authentication service that contains bcrypted passwords
-            // to compare with
+            authenticated = true;
+            credentials.setRemoteAddress(call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
 
-            // DEMO: Authenticate with any login and password=1
-            if (credentials.getPassword().equals("1")) {
-                authenticated = true;
+            // add basicAuth credentials to context
+            context = Context.current().withValue(CLIENT_BASIC_CONTEXT_KEY, credentials);
 
-                // clear password
-                credentials.setPassword(null);
+            if (accessLogCall != null) {
+                accessLogCall.setLogin(credentials.getLogin());
+            }
+        }
 
-                // add basicAuth credentials to context
-                context = Context.current().withValue(CLIENT_BASIC_CONTEXT_KEY, credentials);
+        // PING -------------------------------------------------------
 
-                log.info("Client '{}' has authenticated", credentials.getLogin());
-            }
+        // reachability check, no auth required
+        // with cluster secret - gossip heartbeat of server node
+        if (!authenticated && PING_METHOD.equals(call.getMethodDescriptor().getFullMethodName())) {
 
+            authenticated = true;
 
+            if (clusterSecretBytes != null && ClusterAuthInterceptor.verify(clusterSecretBytes, headers)) {
+                context = Context.current().withValue(PEER_CONTEXT_KEY, Boolean.TRUE);
+            }
         }
 
         // TOKEN AUTH -------------------------------------------------
 
         if (!authenticated && (token = getClientToken(headers)) != null) {
 
-            if (clientList.get(token) != null) {
+            Client client = tokenService.resolve(token);
+
+            if (client != null) {
 
                 authenticated = true;
 
-                // add token to context
-                context = Context.current().withValue(CLIENT_TOKEN_CONTEXT_KEY, token);
+                // add client to context
+                context = Context.current().withValue(CLIENT_CONTEXT_KEY, client);
+
+                if (accessLogCall != null) {
+                    accessLogCall.setLogin(client.getLogin());
+                }
             }
         }
 
@@ -102,7 +164,8 @@ public class HeaderInterceptor implements ServerInterceptor {
         }
         // Not authenticated
         else {
-            log.info("Client not authenticated");
+            rejected.increment();
+            log.debug("Client not authenticated");
             call.close(Status.UNAUTHENTICATED .withDescription("Not authenticated"), new Metadata());
             //call.close(Status.PERMISSION_DENIED.withDescription("not authenticated"), new Metadata.Trailers());
             //noinspection unchecked
@@ -125,37 +188,25 @@ public class HeaderInterceptor implements ServerInterceptor {
     }
 
 
+    private boolean isSampled() {
 
-    private <ReqT, RespT> void logIncomingCall(ServerCall<ReqT, RespT> call, Metadata headers) {
-        // cleanup passwords
-        Set<String> filteredKeys = new HashSet<>(headers.keys());
-        filteredKeys.removeIf(s -> s.equals(CLIENT_BASIC) || s.equals(CLIENT_TOKEN));
-
-        // ASCII_STRING_MARSHALLER only, no binary headers supported
-        StringBuilder sb = new StringBuilder("Metadata=(");
-        boolean fmt = false;
-        for (String key : filteredKeys) {
-            if (fmt) sb.append(","); else fmt = true; // formatting
-            sb.append(key).append("=");
-            Iterable<String> values = headers.getAll(Metadata.Key.of(key, ASCII_STRING_MARSHALLER));
-            for (String s : Objects.requireNonNull(values)) {
-                sb.append(s);
-            }
-        }
-        sb.append(')');
-
-        log.info("Incoming call: {}, rpc: {}", sb.toString(), getMethodName(call));
+        return accessLogSampleRate > 0 &&
+               AccessLogCall.ACCESS_LOG.isInfoEnabled() &&
+               (accessLogSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < accessLogSampleRate);
     }
 
-    private <ReqT, RespT> String getMethodName(ServerCall<ReqT, RespT> call) {
 
-        String result = null;
-
-        String[] methodList = call.getMethodDescriptor().getFullMethodName().split("/");
-        if (methodList.length >=2) {
-
-            // get rpc method name
-            result = methodList[1];
+    /**
+     * @return rpc method name, cached per method
+     */
+    private String getMethodName(MethodDescriptor<?, ?> method) {
+
+        String result = methodNames.get(method);
+        if (result == null) {
+            // service/method
+            String fullName = method.getFullMethodName();
+            result = fullName.substring(fullName.lastIndexOf('/') + 1);
+            methodNames.putIfAbsent(method, result);
         }
         return result;
     }
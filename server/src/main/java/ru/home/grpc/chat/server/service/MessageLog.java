@@ -0,0 +1,584 @@
+package ru.home.grpc.chat.server.service;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.ServerMessage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Append-only log of broadcast ServerMessages, each message gets monotonically increasing seq
+ * <br> Log is split to fixed-size memory-mapped segment files ({firstSeq}.seg),
+ * oldest segments are deleted above grpc.server.log.max-segments
+ * <br> Record: [int length][long seq][ServerMessage bytes], length == 0 - end of segment.
+ * Length is written last, so partially written record is not recovered after crash
+ * (nor records after it - they may be written concurrently)
+ * <br> Append is lock-free: message is serialized without seq, then seq and record position
+ * are claimed by CAS on log tail and record is written concurrently with other appenders.
+ * Written records are published to readers in seq order (by the appender which completes
+ * contiguous range, nobody waits for slow appenders). Lock is taken only to switch segment.
+ * <br> Switching segment creates and maps new file on appending thread, flush of full segment
+ * and deletion of old ones are done by flusher thread
+ * <br> Replay reads records straight from mapped segments, history is not loaded to heap
+ * <br> Room messages are also kept in RoomHistory (written here)
+ * <br> Seqs are local to log (node): high bits of seq are random log id chosen when log is created,
+ * so seq of other node log (client reconnected to other cluster node) is recognized by isOwn()
+ */
+@Component
+public class MessageLog {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int HEADER_SIZE = 12;
+    private static final String SUFFIX = ".seg";
+
+    // seq field is appended to serialized message (field order does not matter for protobuf)
+    private static final int MAX_SEQ_SIZE = CodedOutputStream.computeUInt64Size(ServerMessage.SEQ_FIELD_NUMBER, Long.MAX_VALUE);
+
+    // records being written at once (power of 2)
+    private static final int MAX_IN_FLIGHT = 1024;
+
+    // seq = log id << LOG_ID_SHIFT | record number, 15 bits of log id keep seq positive
+    private static final int LOG_ID_SHIFT = 48;
+    private static final int LOG_ID_BITS = 15;
+
+    // ServerMessage string field tags: field_number << 3 | wire_type
+    private static final int FROM_TAG = ServerMessage.FROM_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int ROOM_TAG = ServerMessage.ROOM_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int TO_TAG = ServerMessage.TO_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    @Value("${grpc.server.log.dir:data/messages}")
+    private String dir;
+
+    // bytes
+    @Value("${grpc.server.log.segment-size:16777216}")
+    private int segmentSize;
+
+    @Value("${grpc.server.log.max-segments:8}")
+    private int maxSegments;
+
+    // firstSeq -> segment
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // where next record goes, replaced by CAS
+    private final AtomicReference<Position> tail = new AtomicReference<>();
+
+    // last published seq, records <= lastSeq are fully written
+    private final AtomicLong lastSeq = new AtomicLong();
+
+    // seq of written record, slot seq % MAX_IN_FLIGHT, not published yet if > lastSeq
+    private final AtomicLongArray written = new AtomicLongArray(MAX_IN_FLIGHT);
+
+    // flushes full segments and deletes old ones, so appender do not wait for disk
+    private final ExecutorService flusher =
+        Executors.newSingleThreadExecutor(new DefaultThreadFactory("MessageLogFlusher", true));
+
+    // log id of this log (from segment names of existing log)
+    private long logId;
+
+    private RoomHistory roomHistory;
+
+
+    /**
+     * Which records to replay
+     */
+    public interface Filter {
+        boolean accept(String room, String from, String to);
+    }
+
+
+    @Autowired
+    public void setRoomHistory(RoomHistory roomHistory) {
+        this.roomHistory = roomHistory;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() throws IOException {
+
+        Assert.isTrue(segmentSize > HEADER_SIZE, "segment-size is too small");
+        Assert.isTrue(maxSegments > 0, "max-segments should be > 0");
+
+        Path path = Paths.get(dir);
+        Files.createDirectories(path);
+
+        List<Long> firstSeqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                firstSeqs.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(firstSeqs);
+
+        Segment last = null;
+        for (Long firstSeq : firstSeqs) {
+            last = Segment.open(segmentPath(firstSeq), firstSeq);
+            segments.put(firstSeq, last);
+        }
+
+        if (last == null) {
+            long firstSeq = (long)ThreadLocalRandom.current().nextInt(1, 1 << LOG_ID_BITS) << LOG_ID_SHIFT | 1;
+            last = Segment.create(segmentPath(firstSeq), firstSeq, segmentSize);
+            segments.put(firstSeq, last);
+        }
+        logId = segments.firstKey() >>> LOG_ID_SHIFT;
+
+        Position recovered = last.recover();
+        tail.set(recovered);
+        lastSeq.set(recovered.seq - 1);
+
+        log.info("Message log {}: id {}, {} segments, last seq {}", path.toAbsolutePath(), logId, segments.size(), lastSeq);
+    }
+
+
+    @PreDestroy
+    public void preDestroy() {
+
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Message log flusher has not finished");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        tail.get().segment.buffer.force();
+    }
+
+
+    /**
+     * Assign next seq to message and write it to log
+     * @return serialized message with seq
+     */
+    public SerializedMessage append(ServerMessage message) {
+
+        if (message.getSeq() != 0) {
+            message = message.toBuilder().clearSeq().build();
+        }
+        byte[] body = message.toByteArray();
+
+        Assert.isTrue(HEADER_SIZE + body.length + MAX_SEQ_SIZE <= segmentSize, "message is too big for log segment");
+
+        // claim seq and place for record
+        Position at;
+        int length;
+        for (;;) {
+            at = tail.get();
+            length = body.length + CodedOutputStream.computeUInt64Size(ServerMessage.SEQ_FIELD_NUMBER, at.seq);
+
+            if (at.pos + HEADER_SIZE + length > at.segment.buffer.capacity()) {
+                roll(at);
+            }
+            else if (tail.compareAndSet(at, new Position(at.segment, at.pos + HEADER_SIZE + length, at.seq + 1))) {
+                break;
+            }
+        }
+
+        long seq = at.seq;
+        byte[] bytes = Arrays.copyOf(body, length);
+        try {
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes, body.length, length - body.length);
+            out.writeUInt64(ServerMessage.SEQ_FIELD_NUMBER, seq);
+            at.segment.write(at.pos, seq, bytes);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            // never leave a hole, later records are not published before this one
+            publish(seq);
+        }
+
+        SerializedMessage result = SerializedMessage.of(ByteBuffer.wrap(bytes), seq);
+
+        // room message, not private one
+        if (message.getTo().isEmpty()) {
+            roomHistory.add(message.getRoom(), result);
+        }
+        return result;
+    }
+
+
+    public long getLastSeq() {
+        return lastSeq.get();
+    }
+
+
+    /**
+     * @return seq of oldest retained record (may be not written yet if log is empty)
+     */
+    public long getFirstSeq() {
+        return segments.firstKey();
+    }
+
+
+    /**
+     * @return false if seq was assigned by other log (node)
+     */
+    public boolean isOwn(long seq) {
+        return seq >>> LOG_ID_SHIFT == logId;
+    }
+
+
+    /**
+     * @return true if some records after afterSeq of this log are deleted already (older than retained segments)
+     * <br> false for 0 (nothing received) and for seq of other log
+     */
+    public boolean isGap(long afterSeq) {
+        return isOwn(afterSeq) && afterSeq < getFirstSeq() - 1;
+    }
+
+
+    /**
+     * Lazily read records afterSeq < seq <= untilSeq accepted by filter
+     * <br> If afterSeq is older than retained segments, reading starts from oldest retained one
+     */
+    public Iterator<SerializedMessage> read(long afterSeq, long untilSeq, Filter filter) {
+        return new Reader(afterSeq, Math.min(untilSeq, lastSeq.get()), filter);
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    /**
+     * Records are written concurrently, readers see them in seq order without holes:
+     * lastSeq is moved over written records by whoever finds them contiguous
+     */
+    private void publish(long seq) {
+
+        // slot is still used by seq - MAX_IN_FLIGHT (very slow appender)
+        while (seq - lastSeq.get() > MAX_IN_FLIGHT) {
+            Thread.yield();
+        }
+        written.set(slot(seq), seq);
+
+        long last;
+        while (written.get(slot((last = lastSeq.get()) + 1)) == last + 1) {
+            lastSeq.compareAndSet(last, last + 1);
+        }
+    }
+
+
+    private static int slot(long seq) {
+        return (int)(seq & (MAX_IN_FLIGHT - 1));
+    }
+
+
+    /**
+     * Start new segment when record do not fit to current one
+     * <br> Tail is sealed first (no space left), so other appenders can not claim
+     * space in old segment while new one is created
+     */
+    private synchronized void roll(Position full) {
+
+        Position sealed = new Position(full.segment, full.segment.buffer.capacity(), full.seq);
+        if (!tail.compareAndSet(full, sealed)) {
+            // rolled already or space claimed by other appender
+            return;
+        }
+
+        long firstSeq = full.seq;
+        Segment next = Segment.create(segmentPath(firstSeq), firstSeq, segmentSize);
+        segments.put(firstSeq, next);
+        tail.set(new Position(next, 0, firstSeq));
+
+        // retention, readers keep own mapping of deleted segments
+        List<Segment> expired = new ArrayList<>();
+        while (segments.size() > maxSegments) {
+            expired.add(segments.pollFirstEntry().getValue());
+        }
+
+        Runnable flush = () -> {
+            full.segment.buffer.force();
+            for (Segment segment : expired) {
+                try {
+                    Files.deleteIfExists(segment.path);
+                }
+                catch (IOException e) {
+                    log.warn("Failed to delete segment {}", segment.path, e);
+                }
+            }
+        };
+        try {
+            flusher.execute(flush);
+        }
+        catch (RejectedExecutionException e) {
+            // shutting down
+            flush.run();
+        }
+    }
+
+
+    private Path segmentPath(long firstSeq) {
+        return Paths.get(dir, String.format("%020d%s", firstSeq, SUFFIX));
+    }
+
+
+    private static final class Segment {
+
+        final Path path;
+        final long firstSeq;
+        final MappedByteBuffer buffer;
+
+        private Segment(Path path, long firstSeq, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstSeq = firstSeq;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Existing file may be only a recovered segment without records (truncated by crash)
+         */
+        static Segment create(Path path, long firstSeq, int size) {
+            return map(path, firstSeq, size, StandardOpenOption.CREATE);
+        }
+
+        static Segment open(Path path, long firstSeq) throws IOException {
+            return map(path, firstSeq, Files.size(path));
+        }
+
+        private static Segment map(Path path, long firstSeq, long size, StandardOpenOption... options) {
+
+            try (FileChannel channel = FileChannel.open(path, concat(options,
+                StandardOpenOption.READ, StandardOpenOption.WRITE))) {
+
+                // mapping stays valid after channel is closed
+                return new Segment(path, firstSeq, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException("Failed to map " + path, e);
+            }
+        }
+
+        /**
+         * Find end of valid records, garbage after them is zeroed
+         * @return position of next record
+         */
+        Position recover() {
+
+            long seq = firstSeq;
+            int pos = 0;
+            int length;
+            while ((length = length(buffer, pos, seq)) > 0) {
+                pos += HEADER_SIZE + length;
+                seq++;
+            }
+
+            for (int i = pos; i < buffer.capacity(); i++) {
+                buffer.put(i, (byte)0);
+            }
+            return new Position(this, pos, seq);
+        }
+
+        void write(int pos, long seq, byte[] bytes) {
+
+            ByteBuffer body = buffer.duplicate();
+            body.position(pos + HEADER_SIZE);
+            body.put(bytes);
+            buffer.putLong(pos + 4, seq);
+            buffer.putInt(pos, bytes.length);
+        }
+
+        /**
+         * @return length of record seq at pos or 0 if no such record
+         */
+        static int length(ByteBuffer buffer, int pos, long seq) {
+
+            if (pos + HEADER_SIZE > buffer.capacity()) {
+                return 0;
+            }
+            int result = buffer.getInt(pos);
+            return result > 0 && pos + HEADER_SIZE + result <= buffer.capacity() &&
+                buffer.getLong(pos + 4) == seq ? result : 0;
+        }
+
+        private static StandardOpenOption[] concat(StandardOpenOption[] a, StandardOpenOption... b) {
+
+            StandardOpenOption[] result = new StandardOpenOption[a.length + b.length];
+            System.arraycopy(a, 0, result, 0, a.length);
+            System.arraycopy(b, 0, result, a.length, b.length);
+            return result;
+        }
+    }
+
+
+    /**
+     * Log tail: next record goes to segment at pos and gets seq
+     */
+    private static final class Position {
+
+        final Segment segment;
+        final int pos;
+        final long seq;
+
+        Position(Segment segment, int pos, long seq) {
+            this.segment = segment;
+            this.pos = pos;
+            this.seq = seq;
+        }
+    }
+
+
+    /**
+     * Walks segments record by record, seqs are contiguous so reader never
+     * touches records that may be written concurrently (seq > untilSeq)
+     */
+    private final class Reader implements Iterator<SerializedMessage> {
+
+        private final long untilSeq;
+        private final Filter filter;
+
+        private Segment segment;
+        private ByteBuffer buffer;
+        private int pos;
+        private long seq;
+
+        private SerializedMessage next;
+
+        Reader(long afterSeq, long untilSeq, Filter filter) {
+
+            this.untilSeq = untilSeq;
+            this.filter = filter;
+
+            Map.Entry<Long, Segment> entry = segments.floorEntry(afterSeq + 1);
+            if (entry == null) {
+                entry = segments.firstEntry();
+            }
+            open(entry.getValue());
+
+            // skip to afterSeq
+            while (seq <= afterSeq && seq <= untilSeq && advance()) {
+                skip();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            while (next == null && seq <= untilSeq && advance()) {
+
+                int length = buffer.getInt(pos);
+                ByteBuffer record = buffer.duplicate();
+                record.position(pos + HEADER_SIZE);
+                record.limit(pos + HEADER_SIZE + length);
+
+                if (accept(record.slice())) {
+                    next = SerializedMessage.of(record, seq);
+                }
+                skip();
+            }
+            return next != null;
+        }
+
+        @Override
+        public SerializedMessage next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SerializedMessage result = next;
+            next = null;
+            return result;
+        }
+
+
+        private void open(Segment segment) {
+            this.segment = segment;
+            this.buffer = segment.buffer.duplicate();
+            this.pos = 0;
+            this.seq = segment.firstSeq;
+        }
+
+        /**
+         * Move to next segment if current one is over
+         * @return false if no more records
+         */
+        private boolean advance() {
+
+            while (Segment.length(buffer, pos, seq) == 0) {
+                Map.Entry<Long, Segment> entry = segments.higherEntry(segment.firstSeq);
+                if (entry == null) {
+                    return false;
+                }
+                open(entry.getValue());
+            }
+            return true;
+        }
+
+        private void skip() {
+            pos += HEADER_SIZE + buffer.getInt(pos);
+            seq++;
+        }
+
+        private boolean accept(ByteBuffer record) {
+
+            String room = "";
+            String from = "";
+            String to = "";
+
+            try {
+                CodedInputStream in = CodedInputStream.newInstance(record);
+                int tag;
+                while ((tag = in.readTag()) != 0) {
+                    if (tag == ROOM_TAG) {
+                        room = in.readStringRequireUtf8();
+                    }
+                    else if (tag == FROM_TAG) {
+                        from = in.readStringRequireUtf8();
+                    }
+                    else if (tag == TO_TAG) {
+                        to = in.readStringRequireUtf8();
+                    }
+                    else {
+                        in.skipField(tag);
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.warn("Corrupted record {}", seq, e);
+                return false;
+            }
+            return filter.accept(room, from, to);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.home.grpc.chat.server.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.home.grpc.chat.server.entities.Client;
+import ru.home.grpc.chat.server.utils.TokenGenerator;
+
+/**
+ * Random token, client is registered in SessionRegistry (PENDING) on issue
+ * and token is resolved by registry lookup
+ */
+@Component
+@ConditionalOnProperty(name = "grpc.server.auth.token-format", havingValue = "opaque", matchIfMissing = true)
+public class OpaqueTokenService implements TokenService {
+
+    private SessionRegistry registry;
+
+    @Autowired
+    public void setRegistry(SessionRegistry registry) {
+        this.registry = registry;
+    }
+
+
+    @Override
+    public String issue(String login) {
+
+        String token = TokenGenerator.generate();
+        registry.add(new Client(login, token));
+        return token;
+    }
+
+
+    @Override
+    public Client resolve(String token) {
+        return registry.get(token);
+    }}
@@ -0,0 +1,416 @@
+package ru.home.grpc.chat.server.service;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded per-client queue of outgoing messages
+ * <br> Drained by serialized task on shared executor - only one thread at a time
+ * calls observer.onNext() (StreamObserver not thread-safe),
+ * so slow client will not stall senders and other clients
+ * <br> Messages are passed to grpc only while call is ready (transport flow control window is open),
+ * draining resumes from onReadyHandler. So messages for slow client are held here (bounded)
+ * instead of unbounded netty buffers, overflow is handled by SlowConsumerPolicy
+ * <br> Replay (resume after reconnect) is delivered before queued messages,
+ * it is pulled from MessageLog only while call is ready
+ * <br> Batch mode (chatBatch stream): drain is delayed for batch window after first queued message
+ * (or starts at once when maxBatch messages are queued), ready messages are sent as
+ * one ServerMessageBatch of up to maxBatch messages
+ */
+public class OutboundQueue implements Runnable {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final ServerCallStreamObserver<SerializedMessage> observer;
+    private final Executor executor;
+    private final BlockingQueue<SerializedMessage> queue;
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+
+    // called (once) after stream has been closed by server (disconnect() or complete())
+    private final Runnable onDisconnect;
+
+    // drain requests counter, drain task is scheduled/running while wip > 0
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // min seq of logged messages queued (live) on this stream, 0 - none yet
+    private final AtomicLong firstLiveSeq = new AtomicLong();
+
+    // history to deliver before queued messages, cleared by drain task when done
+    private final AtomicReference<Iterator<SerializedMessage>> replay = new AtomicReference<>();
+
+    // queued messages with seq <= replayUntil are delivered by replay
+    private volatile long replayUntil;
+
+    private volatile boolean closed;
+
+    // stream should be closed by drain task
+    private volatile boolean disconnectPending;
+
+    // error to close stream with, OK - complete stream normally
+    private volatile Status disconnectStatus;
+
+    // batch mode, null - each message is sent as is
+    private ScheduledExecutorService batchScheduler;
+    private long batchWindow;
+    private int maxBatch = 1;
+
+    // COALESCE: last "messages skipped" notice and its count, guarded by this
+    private SerializedMessage notice;
+    private int noticeSkipped;
+
+    // delayed drain is scheduled
+    private final AtomicBoolean delayed = new AtomicBoolean();
+
+    public OutboundQueue(ServerCallStreamObserver<SerializedMessage> observer, Executor executor,
+                         int capacity, SlowConsumerPolicy policy, Runnable onDisconnect) {
+        this.observer = observer;
+        this.executor = executor;
+        // COALESCE: spare slot for "messages skipped" notice
+        this.queue = new ArrayBlockingQueue<>(policy == SlowConsumerPolicy.COALESCE ? capacity + 1 : capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.onDisconnect = onDisconnect;
+
+        // Should be set before chat() returns
+        observer.setOnReadyHandler(this::schedule);
+    }
+
+
+    /**
+     * Switch to batch mode, should be called before first offer()
+     * @param window how long to wait for more messages after first one, milliseconds
+     * @param maxBatch max messages in one batch, drain starts at once when so many are queued
+     */
+    public OutboundQueue batching(ScheduledExecutorService scheduler, long window, int maxBatch) {
+
+        this.batchScheduler = scheduler;
+        this.batchWindow = window;
+        this.maxBatch = maxBatch;
+        return this;
+    }
+
+
+    /**
+     * Non-blocking enqueue
+     * @return false if message was not queued (queue closed or full and policy do not allow to make room)
+     */
+    public boolean offer(SerializedMessage message) {
+
+        if (closed) {
+            return false;
+        }
+
+        trackFirstLive(message.getSeq());
+
+        // COALESCE spare slot is taken only by overflow()
+        boolean full = policy == SlowConsumerPolicy.COALESCE && queue.size() >= capacity;
+        if (full || !queue.offer(message)) {
+            if (!overflow(message)) {
+                return false;
+            }
+        }
+
+        if (batchScheduler == null || queue.size() >= maxBatch) {
+            schedule();
+        }
+        else {
+            scheduleDelayed();
+        }
+        return true;
+    }
+
+
+    /**
+     * Deliver history before queued messages
+     * @param until last replayed seq, queued messages with seq <= until will be skipped
+     */
+    public void replay(Iterator<SerializedMessage> messages, long until) {
+
+        replayUntil = until;
+        replay.set(messages);
+        schedule();
+    }
+
+
+    /**
+     * @return min seq of logged messages queued on this stream, 0 - none yet
+     */
+    public long getFirstLiveSeq() {
+        return firstLiveSeq.get();
+    }
+
+
+    /**
+     * Close stream with error, pending messages are discarded
+     * <br> Stream is closed by drain task (observer is not thread-safe), then onDisconnect is called
+     * @return false if queue is already closed
+     */
+    public boolean disconnect(Status status) {
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            close();
+            disconnectStatus = status;
+            disconnectPending = true;
+        }
+        schedule();
+        return true;
+    }
+
+
+    /**
+     * Complete stream normally (client has half-closed it), pending messages are discarded
+     * <br> Stream is completed by drain task, then onDisconnect is called
+     * @return false if queue is already closed
+     */
+    public boolean complete() {
+        return disconnect(Status.OK);
+    }
+
+
+    /**
+     * Stop delivering messages, pending messages are discarded
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return count of messages discarded due to overflow
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    /**
+     * Apply SlowConsumerPolicy to full queue
+     * @return true if message has been queued
+     */
+    private boolean overflow(SerializedMessage message) {
+
+        switch (policy) {
+
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                return true;
+
+            case COALESCE:
+                // several senders may overflow at once, others may offer concurrently (not under lock)
+                synchronized (this) {
+                    if (queue.size() < capacity && queue.offer(message)) {
+                        return true;
+                    }
+
+                    int skipped = 0;
+                    SerializedMessage polled;
+                    while ((polled = queue.poll()) != null) {
+                        if (polled == notice) {
+                            // undelivered notice is replaced, keep its count
+                            skipped += noticeSkipped;
+                        }
+                        else {
+                            skipped++;
+                            dropped.incrementAndGet();
+                        }
+                    }
+
+                    // spare slot is for notice, so message fits even with capacity 1
+                    notice = SerializedMessage.of(ChatService.buildServerMessage("server",
+                        String.format("%1$d messages skipped", skipped)));
+                    noticeSkipped = skipped;
+                    queue.offer(notice);
+
+                    if (!queue.offer(message)) {
+                        // queue refilled by concurrent senders meanwhile
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                }
+                return true;
+
+            case DISCONNECT:
+            default:
+                int size = queue.size();
+                if (disconnect(Status.RESOURCE_EXHAUSTED.withDescription("Slow consumer, outbound queue overflow"))) {
+                    log.debug("Slow consumer, disconnecting");
+                    dropped.addAndGet(size + 1);
+                }
+                return false;
+        }
+    }
+
+
+    private void trackFirstLive(long seq) {
+
+        if (seq == 0) {
+            return;
+        }
+        long current;
+        while (((current = firstLiveSeq.get()) == 0 || seq < current) &&
+               !firstLiveSeq.compareAndSet(current, seq)) {
+            // retry
+        }
+    }
+
+
+    private void schedule() {
+
+        if (wip.getAndIncrement() == 0) {
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                // executor is shutting down
+                log.debug("Outbound executor rejected drain task", e);
+                close();
+            }
+        }
+    }
+
+
+    /**
+     * Drain once batch window elapsed, several offers within window share one drain
+     */
+    private void scheduleDelayed() {
+
+        if (delayed.compareAndSet(false, true)) {
+            try {
+                batchScheduler.schedule(() -> {
+                    delayed.set(false);
+                    schedule();
+                }, batchWindow, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                delayed.set(false);
+                schedule();
+            }
+        }
+    }
+
+
+    /**
+     * Drain queue to observer while it is ready
+     */
+    @Override
+    public void run() {
+
+        List<SerializedMessage> batch = batchScheduler == null ? null : new ArrayList<>(maxBatch);
+
+        int missed = 1;
+        do {
+            SerializedMessage message;
+            while (!closed && observer.isReady() && (message = next()) != null) {
+                try {
+                    if (batch == null) {
+                        observer.onNext(message);
+                    }
+                    else {
+                        batch.add(message);
+                        while (batch.size() < maxBatch && (message = next()) != null) {
+                            batch.add(message);
+                        }
+                        observer.onNext(SerializedMessage.batch(batch));
+                        batch.clear();
+                    }
+                }
+                catch (RuntimeException e) {
+                    // call has been cancelled/closed
+                    log.debug("Failed to deliver message", e);
+                    close();
+                }
+            }
+
+            if (disconnectPending) {
+                disconnect();
+            }
+
+            missed = wip.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+
+    /**
+     * Replayed messages first, then queued ones
+     */
+    private SerializedMessage next() {
+
+        Iterator<SerializedMessage> history = replay.get();
+        if (history != null) {
+            try {
+                if (history.hasNext()) {
+                    return history.next();
+                }
+            }
+            catch (RuntimeException e) {
+                log.warn("Replay failed", e);
+            }
+            // keep replay set by next RESUME meanwhile
+            replay.compareAndSet(history, null);
+        }
+
+        SerializedMessage result;
+        long until = replayUntil;
+        while ((result = queue.poll()) != null && result.getSeq() != 0 && result.getSeq() <= until) {
+            // already replayed
+        }
+        return result;
+    }
+
+
+    private void disconnect() {
+
+        disconnectPending = false;
+        try {
+            if (disconnectStatus.isOk()) {
+                observer.onCompleted();
+            }
+            else {
+                observer.onError(disconnectStatus.asRuntimeException());
+            }
+        }
+        catch (RuntimeException e) {
+            log.debug("Failed to close call", e);
+        }
+        onDisconnect.run();
+    }
+}
@@ -0,0 +1,212 @@
+package ru.home.grpc.chat.server.service;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.server.entities.Client;
+import ru.home.grpc.chat.server.utils.TokenBucket;
+
+import javax.annotation.PostConstruct;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token-bucket limits of client traffic
+ * <br> stream - messages (MESSAGE, DIRECT) of one chat stream
+ * <br> login - messages of all chat streams of one login (client may open many streams)
+ * <br> control - JOIN/LEAVE/RESUME of one chat stream, own budget so reconnect
+ * (re-join of all rooms and RESUME at once) is not limited by chat traffic
+ * <br> auth - authenticate calls of one login from one ip (so others can not lock login out)
+ * <br> Login buckets are kept while used, dropped after they would be full again anyway
+ * (and least recently used ones over max-logins)
+ */
+@Component
+public class RateLimiter {
+
+    @Value("${grpc.server.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${grpc.server.rate-limit.stream.rate:20}")
+    private int streamRate;
+
+    @Value("${grpc.server.rate-limit.stream.burst:50}")
+    private int streamBurst;
+
+    @Value("${grpc.server.rate-limit.control.rate:10}")
+    private int controlRate;
+
+    @Value("${grpc.server.rate-limit.control.burst:100}")
+    private int controlBurst;
+
+    @Value("${grpc.server.rate-limit.login.rate:50}")
+    private int loginRate;
+
+    @Value("${grpc.server.rate-limit.login.burst:100}")
+    private int loginBurst;
+
+    @Value("${grpc.server.rate-limit.auth.rate:1}")
+    private int authRate;
+
+    @Value("${grpc.server.rate-limit.auth.burst:5}")
+    private int authBurst;
+
+    // login buckets (and login@ip auth buckets) kept, least recently used are dropped
+    @Value("${grpc.server.rate-limit.max-logins:100000}")
+    private int maxLogins;
+
+    private MeterRegistry meterRegistry;
+
+    private LoadingCache<String, TokenBucket> loginBuckets;
+    private LoadingCache<String, TokenBucket> authBuckets;
+
+    private Counter streamThrottled;
+    private Counter controlThrottled;
+    private Counter loginThrottled;
+    private Counter authThrottled;
+
+
+    @Autowired
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        if (!enabled) {
+            return;
+        }
+
+        Assert.isTrue(streamRate > 0 && streamBurst > 0, "rate-limit.stream.rate/burst should be > 0");
+        Assert.isTrue(controlRate > 0 && controlBurst > 0, "rate-limit.control.rate/burst should be > 0");
+        Assert.isTrue(loginRate > 0 && loginBurst > 0, "rate-limit.login.rate/burst should be > 0");
+        Assert.isTrue(authRate > 0 && authBurst > 0, "rate-limit.auth.rate/burst should be > 0");
+        Assert.isTrue(maxLogins > 0, "rate-limit.max-logins should be > 0");
+
+        loginBuckets = buckets(loginRate, loginBurst);
+        authBuckets = buckets(authRate, authBurst);
+
+        streamThrottled = throttledCounter("stream");
+        controlThrottled = throttledCounter("control");
+        loginThrottled = throttledCounter("login");
+        authThrottled = throttledCounter("auth");
+    }
+
+
+    /**
+     * @return bucket of new chat stream, null - rate limiting disabled
+     */
+    public TokenBucket newStreamBucket() {
+        return enabled ? new TokenBucket(streamRate, streamBurst) : null;
+    }
+
+
+    /**
+     * @return control actions bucket of new chat stream, null - rate limiting disabled
+     */
+    public TokenBucket newControlBucket() {
+        return enabled ? new TokenBucket(controlRate, controlBurst) : null;
+    }
+
+
+    /**
+     * Take token for one chat message from stream and login buckets,
+     * nothing is taken if any of them is empty
+     * <br> Stream bucket is used by one thread at a time (stream inbound messages are serialized),
+     * so token checked there is still available after shared login bucket is charged
+     * @param streamBucket from newStreamBucket()
+     * @return false - message should be rejected
+     */
+    public boolean tryMessage(Client client, TokenBucket streamBucket) {
+
+        if (streamBucket == null) {
+            return true;
+        }
+
+        if (!streamBucket.hasToken()) {
+            streamThrottled.increment();
+            return false;
+        }
+
+        if (!loginBuckets.getUnchecked(client.getLogin()).tryAcquire()) {
+            loginThrottled.increment();
+            return false;
+        }
+
+        streamBucket.tryAcquire();
+        return true;
+    }
+
+
+    /**
+     * Take token for one control action (JOIN/LEAVE/RESUME)
+     * @param controlBucket from newControlBucket()
+     * @return false - action should be rejected
+     */
+    public boolean tryControl(TokenBucket controlBucket) {
+
+        if (controlBucket == null || controlBucket.tryAcquire()) {
+            return true;
+        }
+        controlThrottled.increment();
+        return false;
+    }
+
+
+    /**
+     * @param remote client address, null - unknown (in-process)
+     * @return false - authentication of login from remote ip should be rejected
+     */
+    public boolean tryAuthenticate(String login, SocketAddress remote) {
+
+        if (!enabled) {
+            return true;
+        }
+
+        String key = remote instanceof InetSocketAddress ?
+            login + '@' + ((InetSocketAddress) remote).getAddress().getHostAddress() : login;
+
+        if (!authBuckets.getUnchecked(key).tryAcquire()) {
+            authThrottled.increment();
+            return false;
+        }
+        return true;
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private LoadingCache<String, TokenBucket> buckets(int rate, int burst) {
+
+        // idle bucket is full again after burst / rate, no need to keep it longer
+        long refill = TimeUnit.SECONDS.toMillis(burst) / rate + 1;
+
+        return CacheBuilder.newBuilder()
+            .maximumSize(maxLogins)
+            .expireAfterAccess(refill, TimeUnit.MILLISECONDS)
+            .build(new CacheLoader<String, TokenBucket>() {
+                @Override
+                public TokenBucket load(String login) {
+                    return new TokenBucket(rate, burst);
+                }
+            });
+    }
+
+
+    private Counter throttledCounter(String scope) {
+
+        return Counter.builder("chat.throttled")
+            .description("Requests rejected by rate limits")
+            .tag("scope", scope)
+            .register(meterRegistry);
+    }
+}
@@ -0,0 +1,151 @@
+package ru.home.grpc.chat.server.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Recent room messages for scrollback
+ * <br> Each room has preallocated ring of grpc.server.history.size serialized messages,
+ * so memory per room is fixed and reading history do not depend on traffic volume
+ * <br> Written by concurrent MessageLog.append() calls, lock-free: writer claims ring index,
+ * slot keeps index of its message, so readers drop slots overwritten by newer messages
+ * or not written yet
+ * <br> Ring is created by SessionRegistry when room gets first member and dropped with last one
+ * (atomically with room index), messages to rooms without ring are not kept
+ */
+@Component
+public class RoomHistory {
+
+    // messages per room, 0 - history disabled
+    @Value("${grpc.server.history.size:64}")
+    private int size;
+
+    private final ConcurrentMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        Assert.isTrue(size >= 0, "history size should be >= 0");
+    }
+
+
+    void add(String room, SerializedMessage message) {
+
+        if (size == 0) {
+            return;
+        }
+
+        Ring ring = rings.get(room);
+        if (ring != null) {
+            ring.add(message);
+        }
+    }
+
+
+    /**
+     * @param limit max messages, 0 - all available
+     * @return last messages of room, oldest first
+     */
+    public List<SerializedMessage> last(String room, int limit) {
+
+        Ring ring = rings.get(room);
+        if (ring == null) {
+            return Collections.emptyList();
+        }
+        return ring.last(limit <= 0 ? size : Math.min(limit, size));
+    }
+
+
+    /**
+     * Start history of room (room got first member)
+     */
+    void create(String room) {
+
+        if (size > 0) {
+            rings.putIfAbsent(room, new Ring(size));
+        }
+    }
+
+
+    /**
+     * Drop history of room (room is empty)
+     */
+    void remove(String room) {
+        rings.remove(room);
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private static final class Ring {
+
+        private final AtomicReferenceArray<Entry> slots;
+
+        // messages claimed, slot of message i is i % slots.length()
+        private final AtomicLong head = new AtomicLong();
+
+        Ring(int size) {
+            slots = new AtomicReferenceArray<>(size);
+        }
+
+        void add(SerializedMessage message) {
+
+            long index = head.getAndIncrement();
+            int slot = slot(index);
+            Entry entry = new Entry(index, message);
+
+            // slow writer do not overwrite newer message
+            Entry old;
+            do {
+                old = slots.get(slot);
+                if (old != null && old.index > index) {
+                    return;
+                }
+            }
+            while (!slots.compareAndSet(slot, old, entry));
+        }
+
+        List<SerializedMessage> last(int limit) {
+
+            long h = head.get();
+            long from = Math.max(0, h - limit);
+
+            List<SerializedMessage> result = new ArrayList<>((int)(h - from));
+            for (long i = from; i < h; i++) {
+                Entry entry = slots.get(slot(i));
+                if (entry != null && entry.index == i) {
+                    result.add(entry.message);
+                }
+            }
+            return result;
+        }
+
+        private int slot(long i) {
+            return (int)(i % slots.length());
+        }
+    }
+
+
+    private static final class Entry {
+
+        final long index;
+        final SerializedMessage message;
+
+        Entry(long index, SerializedMessage message) {
+            this.index = index;
+            this.message = message;
+        }
+    }
+}
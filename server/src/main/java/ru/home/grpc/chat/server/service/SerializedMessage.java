@@ -0,0 +1,229 @@
+package ru.home.grpc.chat.server.service;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.ServerMessageBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * ServerMessage encoded to protobuf wire format once
+ * <br> Same (immutable) bytes are written to all subscribers, so broadcast to N clients
+ * do not marshal message N times. Wire format is the same as for ServerMessage,
+ * clients use generated ChatServiceGrpc stubs as usual.
+ * <br> Bytes may be on heap or slice of MessageLog mapped segment (replay),
+ * mapped bytes are copied to transport directly, without heap copy of message
+ * <br> ServerMessageBatch is built from already serialized messages - only field headers
+ * are added, message bytes are not copied or re-encoded
+ */
+public final class SerializedMessage {
+
+    /**
+     * Pass-through marshaller, used instead of ServerMessage proto marshaller
+     */
+    public static final MethodDescriptor.Marshaller<SerializedMessage> MARSHALLER = new Marshaller();
+
+    // copy chunk for direct (mapped) buffers
+    private static final int CHUNK_SIZE = 4096;
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    // ServerMessageBatch.messages field tag
+    private static final int BATCH_TAG =
+        ServerMessageBatch.MESSAGES_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    // message parts, written one by one
+    private final ByteBuffer[] buffers;
+
+    // ServerMessage.seq, 0 - not logged or batch
+    private final long seq;
+
+    private final int size;
+
+    private SerializedMessage(ByteBuffer buffer, long seq) {
+        this(new ByteBuffer[] {buffer}, seq);
+    }
+
+    private SerializedMessage(ByteBuffer[] buffers, long seq) {
+        this.buffers = buffers;
+        this.seq = seq;
+
+        int total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        this.size = total;
+    }
+
+    public static SerializedMessage of(ServerMessage message) {
+        return new SerializedMessage(ByteBuffer.wrap(message.toByteArray()), message.getSeq());
+    }
+
+    /**
+     * @param buffer message bytes from position to limit, should not be modified later
+     */
+    public static SerializedMessage of(ByteBuffer buffer, long seq) {
+        return new SerializedMessage(buffer.slice(), seq);
+    }
+
+    /**
+     * ServerMessageBatch of messages
+     */
+    public static SerializedMessage batch(List<SerializedMessage> messages) {
+
+        int count = 0;
+        for (SerializedMessage message : messages) {
+            count += message.buffers.length + 1;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int i = 0;
+        for (SerializedMessage message : messages) {
+            buffers[i++] = fieldHeader(message.size);
+            for (ByteBuffer buffer : message.buffers) {
+                buffers[i++] = buffer;
+            }
+        }
+        return new SerializedMessage(buffers, 0);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    // ----------------------------------------------------------------------------
+
+
+    private static class Marshaller implements MethodDescriptor.Marshaller<SerializedMessage> {
+
+        @Override
+        public InputStream stream(SerializedMessage value) {
+            return new BufferStream(value.buffers, value.size);
+        }
+
+        @Override
+        public SerializedMessage parse(InputStream stream) {
+            try {
+                return new SerializedMessage(ByteBuffer.wrap(ByteStreams.toByteArray(stream)), 0);
+            }
+            catch (IOException e) {
+                throw Status.INTERNAL.withDescription("Failed to read message").withCause(e).asRuntimeException();
+            }
+        }
+    }
+
+
+    /**
+     * tag + length of embedded message
+     */
+    private static ByteBuffer fieldHeader(int length) {
+
+        byte[] header = new byte[1 + CodedOutputStream.computeUInt32SizeNoTag(length)];
+        CodedOutputStream out = CodedOutputStream.newInstance(header);
+        try {
+            out.writeUInt32NoTag(BATCH_TAG);
+            out.writeUInt32NoTag(length);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(header);
+    }
+
+
+    /**
+     * KnownLength + Drainable let grpc MessageFramer copy whole buffers
+     * directly to transport buffer without intermediate buffering
+     */
+    private static class BufferStream extends InputStream implements KnownLength, Drainable {
+
+        private final ByteBuffer[] bufs;
+        private int index;
+        private int available;
+
+        BufferStream(ByteBuffer[] buffers, int size) {
+
+            bufs = new ByteBuffer[buffers.length];
+            for (int i = 0; i < buffers.length; i++) {
+                bufs[i] = buffers[i].duplicate();
+            }
+            available = size;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+
+            int length = available;
+
+            for (; index < bufs.length; index++) {
+                ByteBuffer buf = bufs[index];
+
+                if (buf.hasArray()) {
+                    target.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                    buf.position(buf.limit());
+                }
+                else {
+                    byte[] chunk = CHUNK.get();
+                    while (buf.hasRemaining()) {
+                        int n = Math.min(chunk.length, buf.remaining());
+                        buf.get(chunk, 0, n);
+                        target.write(chunk, 0, n);
+                    }
+                }
+            }
+            available = 0;
+            return length;
+        }
+
+        @Override
+        public int read() {
+
+            ByteBuffer buf = current();
+            if (buf == null) {
+                return -1;
+            }
+            available--;
+            return buf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+
+            ByteBuffer buf = current();
+            if (buf == null) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            available -= len;
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return available;
+        }
+
+        // buffer having remaining bytes or null if stream is over
+        private ByteBuffer current() {
+
+            while (index < bufs.length && !bufs[index].hasRemaining()) {
+                index++;
+            }
+            return index < bufs.length ? bufs[index] : null;
+        }
+    }
+}
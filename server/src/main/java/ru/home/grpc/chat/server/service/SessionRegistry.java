@@ -0,0 +1,375 @@
+package ru.home.grpc.chat.server.service;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import ru.home.grpc.chat.server.entities.Client;
+import ru.home.grpc.chat.server.entities.Client.State;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * All authenticated clients
+ * <br> Clients are spread by token over shards, each shard keeps its own
+ * token index and PENDING/STREAMING state index.
+ * Secondary indexes: login -> clients, room -> members.
+ * So lookups, cleanup of pending clients, presence checks and room/direct messages
+ * touch only affected clients, not whole registry
+ * <br> Each PENDING client has own expiry timeout on hashed timing wheel,
+ * it is cancelled when client opens chat stream. So expiration cost depends only
+ * on number of expiring clients and fresh authentications are never dropped
+ */
+@Component
+public class SessionRegistry {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // timing wheel resolution
+    private static final int TICK_MILLIS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    // all connected clients are joined here on connect
+    public static final String DEFAULT_ROOM = "";
+
+    // power of 2
+    @Value("${grpc.server.registry.shards:16}")
+    private int shardCount;
+
+    // time to open chat stream after authentication, seconds
+    @Value("${grpc.server.auth.pending-ttl:10}")
+    private int pendingTtl;
+
+    private Shard[] shards;
+
+    private Timer expiryTimer;
+
+    private final ConcurrentMap<String, Set<Client>> loginIndex = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, Set<Client>> roomIndex = new ConcurrentHashMap<>();
+
+    // optional, room history lives while room has members
+    private RoomHistory roomHistory;
+
+
+    @Autowired
+    public void setRoomHistory(RoomHistory roomHistory) {
+        this.roomHistory = roomHistory;
+    }
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        Assert.isTrue(shardCount > 0 && Integer.bitCount(shardCount) == 1, "shards should be power of 2");
+        Assert.isTrue(pendingTtl > 0, "pending-ttl should be > 0");
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+
+        expiryTimer = new HashedWheelTimer(new DefaultThreadFactory("PendingExpiry", true),
+            TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    }
+
+
+    @PreDestroy
+    public void preDestroy() {
+        expiryTimer.stop();
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    /**
+     * Register just authenticated client (PENDING)
+     * <br> Client will be removed if it will not open chat stream in pending-ttl
+     */
+    public void add(Client client) {
+
+        Shard shard = shard(client.getToken());
+        shard.clients.put(client.getToken(), client);
+        shard.pending.put(client, scheduleExpiry(client));
+
+        addToIndex(loginIndex, client.getLogin(), client);
+    }
+
+
+    /**
+     * @return client or null if token unknown
+     */
+    public Client get(String token) {
+        return token == null ? null : shard(token).clients.get(token);
+    }
+
+
+    /**
+     * Client has opened chat stream: PENDING -> STREAMING
+     * <br> Client resolved from self-contained (signed) token is registered here
+     * @return false if client is not pending (already streaming or removed)
+     * or token is already used by another client
+     */
+    public boolean bind(Client client) {
+
+        Shard shard = shard(client.getToken());
+
+        Client registered = shard.clients.putIfAbsent(client.getToken(), client);
+        if (registered == null) {
+            addToIndex(loginIndex, client.getLogin(), client);
+        }
+        else if (registered != client) {
+            return false;
+        }
+
+        if (!client.compareAndSetState(State.PENDING, State.STREAMING)) {
+            return false;
+        }
+
+        cancelExpiry(shard.pending.remove(client));
+        shard.streaming.add(client);
+
+        // removed concurrently
+        if (client.getState() == State.CLOSED) {
+            shard.streaming.remove(client);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Remove client from registry and all rooms
+     * @return false if client has been already removed
+     */
+    public boolean remove(Client client) {
+
+        if (client.getAndSetState(State.CLOSED) == State.CLOSED) {
+            return false;
+        }
+        unregister(client);
+        return true;
+    }
+
+
+    /**
+     * Remove client only if it not opened chat stream yet
+     * @return false if client is streaming or has been already removed
+     */
+    public boolean removePending(Client client) {
+
+        if (!client.compareAndSetState(State.PENDING, State.CLOSED)) {
+            return false;
+        }
+        unregister(client);
+        return true;
+    }
+
+
+    public int getPendingCount() {
+
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.pending.size();
+        }
+        return result;
+    }
+
+
+    public int getStreamingCount() {
+
+        int result = 0;
+        for (Shard shard : shards) {
+            result += shard.streaming.size();
+        }
+        return result;
+    }
+
+
+    /**
+     * Visit clients having chat stream opened (metrics), not a snapshot
+     */
+    public void forEachStreaming(Consumer<Client> action) {
+
+        for (Shard shard : shards) {
+            shard.streaming.forEach(action);
+        }
+    }
+
+
+    // Login index ----------------------------------------------------------------
+
+
+    /**
+     * @return live view of all clients authenticated with login (there may be several)
+     */
+    public Set<Client> getByLogin(String login) {
+        return loginIndex.getOrDefault(login, Collections.emptySet());
+    }
+
+
+    /**
+     * @return login has opened chat stream
+     */
+    public boolean isOnline(String login) {
+
+        for (Client client : getByLogin(login)) {
+            if (client.getState() == State.STREAMING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    // Room index -----------------------------------------------------------------
+
+
+    /**
+     * Room history is created/dropped together with room index entry (under its compute),
+     * so concurrent join can not lose history and empty room do not keep it
+     */
+    public void join(String room, Client client) {
+
+        roomIndex.compute(room, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+                if (roomHistory != null) {
+                    roomHistory.create(room);
+                }
+            }
+            set.add(client);
+            return set;
+        });
+        client.getRooms().add(room);
+    }
+
+
+    public void leave(String room, Client client) {
+
+        client.getRooms().remove(room);
+        roomIndex.computeIfPresent(room, (k, set) -> {
+            set.remove(client);
+            if (!set.isEmpty()) {
+                return set;
+            }
+            if (roomHistory != null) {
+                roomHistory.remove(room);
+            }
+            return null;
+        });
+    }
+
+
+    /**
+     * @return live view of rooms having members
+     */
+    public Set<String> getRooms() {
+        return roomIndex.keySet();
+    }
+
+
+    /**
+     * @return live view of room members, empty if room not exists
+     */
+    public Set<Client> getMembers(String room) {
+        return roomIndex.getOrDefault(room, Collections.emptySet());
+    }
+
+
+    // ============================================================================
+
+
+    private void unregister(Client client) {
+
+        Shard shard = shard(client.getToken());
+        shard.clients.remove(client.getToken(), client);
+        cancelExpiry(shard.pending.remove(client));
+        shard.streaming.remove(client);
+
+        removeFromIndex(loginIndex, client.getLogin(), client);
+
+        for (String room : client.getRooms()) {
+            leave(room, client);
+        }
+    }
+
+
+    private Timeout scheduleExpiry(Client client) {
+
+        long delay = client.getIssuedAt() + TimeUnit.SECONDS.toMillis(pendingTtl) - System.currentTimeMillis();
+
+        return expiryTimer.newTimeout(timeout -> {
+            if (removePending(client)) {
+                log.debug("Authentication of '{}' has expired", client.getLogin());
+            }
+        }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+
+    private static void cancelExpiry(Timeout timeout) {
+
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+
+    private Shard shard(String token) {
+
+        int h = token.hashCode();
+        // spread high bits (like HashMap does)
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+
+    private static void addToIndex(ConcurrentMap<String, Set<Client>> index, String key, Client client) {
+
+        index.compute(key, (k, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(client);
+            return set;
+        });
+    }
+
+
+    // empty sets are removed
+    private static void removeFromIndex(ConcurrentMap<String, Set<Client>> index, String key, Client client) {
+
+        index.computeIfPresent(key, (k, set) -> {
+            set.remove(client);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+
+    private static final class Shard {
+
+        // token -> client
+        final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<>();
+
+        // authenticated, chat stream not opened yet -> expiry timeout
+        final ConcurrentMap<Client, Timeout> pending = new ConcurrentHashMap<>();
+
+        // chat stream opened
+        final Set<Client> streaming = ConcurrentHashMap.newKeySet();
+    }
+}
@@ -0,0 +1,144 @@
+package ru.home.grpc.chat.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import ru.home.grpc.chat.server.entities.Client;
+import ru.home.grpc.chat.server.utils.TokenGenerator;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Self-contained token: base64url(sessionId:expiry:login).base64url(HMAC-SHA256)
+ * <br> Verified by signature and expiry only, no registry lookup.
+ * Client is registered in SessionRegistry when it opens chat stream (see SessionRegistry.bind())
+ * <br> So issued token is never PENDING in registry (no pending expiry/count, token expiry applies).
+ * Node accepts one chat stream per token at a time (bind() rejects token in use),
+ * but token is not single-use: until expiry it may open new stream after previous one is closed,
+ * or on other node
+ * <br> All server nodes should use same grpc.server.auth.token-secret
+ */
+@Component
+@ConditionalOnProperty(name = "grpc.server.auth.token-format", havingValue = "signed")
+public class SignedTokenService implements TokenService {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SESSION_ID_LENGTH = 12;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Value("${grpc.server.auth.token-secret:}")
+    private String secret;
+
+    // token lifetime (time to open chat stream), seconds
+    @Value("${grpc.server.auth.pending-ttl:10}")
+    private int ttl;
+
+    private SecretKeySpec key;
+
+    // Mac is not thread-safe
+    private final ThreadLocal<Mac> mac = ThreadLocal.withInitial(this::createMac);
+
+
+    @PostConstruct
+    public void postConstruct() {
+
+        byte[] keyBytes;
+
+        if (StringUtils.isEmpty(secret)) {
+            log.warn("grpc.server.auth.token-secret not set, using random one - tokens will not be accepted by other nodes");
+            keyBytes = new byte[32];
+            TokenGenerator.nextBytes(keyBytes);
+        }
+        else {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+
+        key = new SecretKeySpec(keyBytes, ALGORITHM);
+
+        // fail fast on startup
+        createMac();
+    }
+
+
+    @Override
+    public String issue(String login) {
+
+        String sessionId = TokenGenerator.generate(SESSION_ID_LENGTH);
+
+        long expiry = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl);
+
+        String payload = ENCODER.encodeToString(
+            (sessionId + ":" + expiry + ":" + login).getBytes(StandardCharsets.UTF_8));
+
+        return payload + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+
+    @Override
+    public Client resolve(String token) {
+
+        try {
+            int dot = token.indexOf('.');
+            if (dot <= 0) {
+                return null;
+            }
+
+            String payload = token.substring(0, dot);
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+
+            if (!MessageDigest.isEqual(signature, sign(payload))) {
+                return null;
+            }
+
+            // sessionId:expiry:login
+            String[] claims = new String(DECODER.decode(payload), StandardCharsets.UTF_8).split(":", 3);
+            if (claims.length != 3 || Long.parseLong(claims[1]) < System.currentTimeMillis()) {
+                return null;
+            }
+
+            return new Client(claims[2], token);
+        }
+        catch (IllegalArgumentException e) {
+            // malformed base64/number
+            return null;
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private byte[] sign(String payload) {
+        return mac.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    }
+
+
+    private Mac createMac() {
+
+        Assert.notNull(key, "key == null");
+        try {
+            Mac result = Mac.getInstance(ALGORITHM);
+            result.init(key);
+            return result;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to init " + ALGORITHM, e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ru.home.grpc.chat.server.service;
+
+/**
+ * What to do with client whose outbound queue is full
+ * (client do not read messages as fast as they are coming)
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Discard oldest queued message to make room for new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Replace whole queue with one "N messages skipped" notice followed by new message
+     */
+    COALESCE,
+
+    /**
+     * Close client stream with RESOURCE_EXHAUSTED
+     */
+    DISCONNECT
+}
@@ -0,0 +1,23 @@
+package ru.home.grpc.chat.server.service;
+
+import ru.home.grpc.chat.server.entities.Client;
+
+/**
+ * Issue and verify client tokens
+ * <br> Implementation is selected by grpc.server.auth.token-format:
+ * <br> opaque - random token, valid while it is registered in SessionRegistry (default)
+ * <br> signed - self-contained HMAC-signed token, verified without shared state,
+ * so tokens are accepted by any server node sharing the same secret
+ */
+public interface TokenService {
+
+    /**
+     * Issue token to just authenticated login
+     */
+    String issue(String login);
+
+    /**
+     * @return client token belongs to or null if token is invalid/expired
+     */
+    Client resolve(String token);
+}
@@ -0,0 +1,58 @@
+package ru.home.grpc.chat.server.utils;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits number of tasks submitted to executor and not yet finished
+ * <br> Task over limit is rejected with RejectedExecutionException, same as full ThreadPoolTaskExecutor queue.
+ * Used for thread-per-task executors (virtual threads) which have no queue to bound
+ */
+public class BoundedExecutor implements Executor {
+
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    public BoundedExecutor(ExecutorService executor, int limit) {
+
+        Assert.notNull(executor, "executor == null");
+        Assert.isTrue(limit > 0, "limit should be > 0");
+
+        this.executor = executor;
+        this.permits = new Semaphore(limit);
+    }
+
+
+    @Override
+    public void execute(Runnable command) {
+
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many tasks");
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    command.run();
+                }
+                finally {
+                    permits.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
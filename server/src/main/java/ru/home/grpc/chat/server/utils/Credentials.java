@@ -4,11 +4,16 @@ import io.grpc.Metadata;
 import org.springframework.util.StringUtils;
 import ru.home.grpc.chat.server.service.HeaderInterceptor;
 
+import java.net.SocketAddress;
+
 public class Credentials {
 
     private String login;
     private String password;
 
+    // client address, authentication rate limit key
+    private SocketAddress remoteAddress;
+
     public Credentials(String login, String password) {
         this.login = login;
         this.password = password;
@@ -30,6 +35,14 @@ public class Credentials {
         this.password = password;
     }
 
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void setRemoteAddress(SocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
 
     public static Credentials getCredentials(Metadata headers) {
 
@@ -41,11 +54,12 @@ public class Credentials {
             basicString = StringUtils.isEmpty(basicString) ? null : basicString;
         }
 
+        // login:password, password may contain ':'
         if(basicString != null) {
-            String[] credentials = basicString.split(":");
+            int colon = basicString.indexOf(':');
 
-            if (credentials.length == 2) {
-                result = new Credentials(credentials[0], credentials[1]);
+            if (colon > 0 && colon < basicString.length() - 1) {
+                result = new Credentials(basicString.substring(0, colon), basicString.substring(colon + 1));
             }
         }
         return result;
@@ -2,6 +2,7 @@ package ru.home.grpc.chat.server.utils;
 
 import io.grpc.Context;
 import io.grpc.Metadata;
+import ru.home.grpc.chat.server.entities.Client;
 
 import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
 
@@ -9,6 +10,8 @@ public class Headers {
 
     public static final String CLIENT_BASIC = "basic_auth";
     public static final String CLIENT_TOKEN = "token_auth";
+    public static final String CLUSTER_SECRET = "cluster_secret";
+    public static final String RETRY_PUSHBACK = "grpc-retry-pushback-ms";
 
     // header key basic auth
     public static final Metadata.Key<String> METADATA_KEY_CLIENT_BASIC =
@@ -18,12 +21,24 @@ public class Headers {
     public static final Metadata.Key<String> METADATA_KEY_CLIENT_TOKEN =
         Metadata.Key.of(CLIENT_TOKEN, ASCII_STRING_MARSHALLER);
 
+    // header key of server to server calls
+    public static final Metadata.Key<String> METADATA_KEY_CLUSTER_SECRET =
+        Metadata.Key.of(CLUSTER_SECRET, ASCII_STRING_MARSHALLER);
+
+    // trailer of calls rejected by admission control, milliseconds to wait before retry
+    public static final Metadata.Key<String> METADATA_KEY_RETRY_PUSHBACK =
+        Metadata.Key.of(RETRY_PUSHBACK, ASCII_STRING_MARSHALLER);
+
     // context key basic auth
     public static final Context.Key<Object> CLIENT_BASIC_CONTEXT_KEY =
         Context.key(CLIENT_BASIC);
 
 
-    // context key token auth
-    public static final Context.Key<Object> CLIENT_TOKEN_CONTEXT_KEY =
-        Context.key(CLIENT_TOKEN);
+    // context key of ping from cluster node (has valid cluster secret)
+    public static final Context.Key<Boolean> PEER_CONTEXT_KEY =
+        Context.key("peer");
+
+    // context key token auth, client resolved from token
+    public static final Context.Key<Client> CLIENT_CONTEXT_KEY =
+        Context.key("client");
 }
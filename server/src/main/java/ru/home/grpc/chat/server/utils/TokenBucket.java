@@ -0,0 +1,69 @@
+package ru.home.grpc.chat.server.utils;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket: rate tokens per second, up to burst tokens at once
+ * <br> Bucket is kept as time when it will be full again (GCRA, theoretical arrival time)
+ * in one AtomicLong - refill is implicit, no timer and no lock, acquire is one CAS
+ */
+public class TokenBucket {
+
+    // nanoseconds per token
+    private final long interval;
+
+    // how far full time may run ahead of now, (burst - 1) tokens
+    private final long tolerance;
+
+    private final AtomicLong fullAt;
+
+    public TokenBucket(int rate, int burst) {
+
+        Assert.isTrue(rate > 0, "rate should be > 0");
+        Assert.isTrue(burst > 0, "burst should be > 0");
+
+        interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        tolerance = interval * (burst - 1);
+
+        // starts full
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+
+    /**
+     * @return bucket has token now (nothing is taken)
+     */
+    public boolean hasToken() {
+
+        long now = System.nanoTime();
+        long current = fullAt.get();
+        long base = current - now > 0 ? current : now;
+        return base - now <= tolerance;
+    }
+
+
+    /**
+     * @return token taken, false - bucket is empty (nothing is taken)
+     */
+    public boolean tryAcquire() {
+
+        long now = System.nanoTime();
+
+        for (;;) {
+            long current = fullAt.get();
+
+            // nanoTime may overflow, compare differences only
+            long base = current - now > 0 ? current : now;
+
+            if (base - now > tolerance) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, base + interval)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ru.home.grpc.chat.server.utils;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Random tokens for login storms
+ * <br> Each thread has own DRBG (SHA1PRNG on java 8) instance seeded once from default SecureRandom,
+ * so there is no global lock and no blocking on /dev/random on every token.
+ * Token is 128 random bits, base64url without padding (22 chars)
+ */
+public final class TokenGenerator {
+
+    public static final int TOKEN_BYTES = 16;
+
+    private static final int SEED_BYTES = 32;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    // non-blocking on linux (/dev/urandom), used only for seeding
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(TokenGenerator::createRandom);
+
+    private TokenGenerator() {}
+
+
+    public static String generate() {
+        return generate(TOKEN_BYTES);
+    }
+
+
+    public static String generate(int bytes) {
+
+        byte[] result = new byte[bytes];
+        nextBytes(result);
+        return ENCODER.encodeToString(result);
+    }
+
+
+    public static void nextBytes(byte[] bytes) {
+        RANDOM.get().nextBytes(bytes);
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private static SecureRandom createRandom() {
+
+        SecureRandom result;
+        try {
+            // java 9+
+            result = SecureRandom.getInstance("DRBG");
+        }
+        catch (NoSuchAlgorithmException e) {
+            try {
+                result = SecureRandom.getInstance("SHA1PRNG");
+            }
+            catch (NoSuchAlgorithmException e1) {
+                result = new SecureRandom();
+            }
+        }
+
+        byte[] seed = new byte[SEED_BYTES];
+        SEED_SOURCE.nextBytes(seed);
+        result.setSeed(seed);
+        return result;
+    }
+}
@@ -0,0 +1,41 @@
+package ru.home.grpc.chat.server.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, project is built for java 8, so they are looked up by reflection
+ */
+public class VirtualThreads {
+
+    private final static Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() or null if jvm do not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            log.debug("Virtual threads are not available, java {}", System.getProperty("java.version"));
+            return null;
+        }
+        catch (InvocationTargetException e) {
+            // java 19/20 without --enable-preview
+            log.debug("Virtual threads are not enabled", e.getCause());
+            return null;
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ru.home.grpc.chat.server.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsistentHashRingTest {
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final int KEYS = 10000;
+
+    private static final List<String> NODES = Arrays.asList("node1:8090", "node2:8090", "node3:8090", "node4:8090");
+
+
+    @Test
+    void deterministic() {
+
+        // same nodes in other order give same ring (each cluster node builds its own)
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+        ConsistentHashRing other = new ConsistentHashRing(Arrays.asList(
+            NODES.get(2), NODES.get(0), NODES.get(3), NODES.get(1)), VIRTUAL_NODES);
+
+        assertEquals(ring.getNodes(), other.getNodes());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(ring.owner("room" + i), other.owner("room" + i));
+        }
+    }
+
+
+    @Test
+    void evenSpread() {
+
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.owner("room" + i), 1, Integer::sum);
+        }
+
+        assertEquals(NODES.size(), counts.size());
+        counts.forEach((node, count) ->
+            assertEquals(KEYS / NODES.size(), count, KEYS / NODES.size() * 0.25, node));
+    }
+
+
+    @Test
+    void addNodeMovesAboutOneOfN() {
+
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+
+        List<String> grown = new ArrayList<>(NODES);
+        grown.add("node5:8090");
+        ConsistentHashRing next = new ConsistentHashRing(grown, VIRTUAL_NODES);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.owner("room" + i);
+            String after = next.owner("room" + i);
+            if (!before.equals(after)) {
+                // keys move only to new node
+                assertEquals("node5:8090", after);
+                moved++;
+            }
+        }
+        assertEquals(KEYS / grown.size(), moved, KEYS / grown.size() * 0.25);
+    }
+
+
+    @Test
+    void removeNodeMovesOnlyItsKeys() {
+
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, VIRTUAL_NODES);
+        ConsistentHashRing next = new ConsistentHashRing(NODES.subList(1, NODES.size()), VIRTUAL_NODES);
+
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.owner("room" + i);
+            String after = next.owner("room" + i);
+            if (before.equals(NODES.get(0))) {
+                assertNotEquals(before, after);
+            }
+            else {
+                assertEquals(before, after);
+            }
+        }
+    }
+
+
+    @Test
+    void singleNode() {
+
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("node1:8090"), 1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("node1:8090", ring.owner("room" + i));
+        }
+    }
+}
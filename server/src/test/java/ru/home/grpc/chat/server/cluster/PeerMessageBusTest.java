@@ -0,0 +1,108 @@
+package ru.home.grpc.chat.server.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.home.grpc.chat.Ping;
+import ru.home.grpc.chat.server.service.SessionRegistry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerMessageBusTest {
+
+    // nothing listens here, heartbeats to it fail
+    private static final String NODE = "localhost:1";
+
+    private SessionRegistry registry;
+
+    private PeerMessageBus bus;
+
+
+    @BeforeEach
+    void setUp() {
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 1);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 10);
+        registry.postConstruct();
+
+        bus = new PeerMessageBus();
+        ReflectionTestUtils.setField(bus, "secret", "secret");
+        ReflectionTestUtils.setField(bus, "peers", new String[0]);
+        ReflectionTestUtils.setField(bus, "virtualNodes", 16);
+        ReflectionTestUtils.setField(bus, "heartbeatInterval", 50);
+        ReflectionTestUtils.setField(bus, "failureTimeout", 300);
+        ReflectionTestUtils.setField(bus, "evictTimeout", 600);
+        ReflectionTestUtils.setField(bus, "queueCapacity", 16);
+        bus.setRegistry(registry);
+        bus.postConstruct();
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        bus.preDestroy();
+        registry.preDestroy();
+    }
+
+
+    @Test
+    void interestExpires() throws InterruptedException {
+
+        bus.gossip(ping("a", "b"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), interest().keySet());
+
+        // node keeps reporting members in room a only
+        long deadline = System.currentTimeMillis() + 3000;
+        while (interest().containsKey("b") && System.currentTimeMillis() < deadline) {
+            bus.gossip(ping("a"));
+            Thread.sleep(20);
+        }
+        assertEquals(Collections.singleton("a"), interest().keySet());
+
+        // node is silent - room a expires, then node is evicted
+        deadline = System.currentTimeMillis() + 3000;
+        while (!interest().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(interest().isEmpty());
+    }
+
+
+    @Test
+    void evictedNodeInterestRemoved() throws InterruptedException {
+
+        // room is reported until eviction, so it is removed by eviction, not expiry
+        ReflectionTestUtils.setField(bus, "failureTimeout", 60_000);
+        bus.gossip(ping("a"));
+
+        Map<?, ?> members = (Map<?, ?>) ReflectionTestUtils.getField(bus, "members");
+        ReflectionTestUtils.setField(members.get(NODE), "lastSeen", System.currentTimeMillis() - 120_000);
+
+        long deadline = System.currentTimeMillis() + 3000;
+        while ((members.containsKey(NODE) || !interest().isEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(members.containsKey(NODE));
+        assertTrue(interest().isEmpty());
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, Long>> interest() {
+        return (Map<String, Map<String, Long>>) ReflectionTestUtils.getField(bus, "interest");
+    }
+
+    private static Ping ping(String... rooms) {
+        return Ping.newBuilder().setNode(NODE).addAllRooms(Arrays.asList(rooms)).build();
+    }
+}
@@ -0,0 +1,259 @@
+package ru.home.grpc.chat.server.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import ru.home.grpc.chat.ServerMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+
+    private Path dir;
+
+    private final List<MessageLog> opened = new ArrayList<>();
+
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("message-log");
+    }
+
+
+    @AfterEach
+    void tearDown() throws IOException {
+        opened.forEach(MessageLog::preDestroy);
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+
+    @Test
+    void appendAndRead() throws Exception {
+
+        MessageLog log = open(1 << 16, 8);
+        long first = log.getFirstSeq();
+
+        for (int i = 0; i < 10; i++) {
+            SerializedMessage message = log.append(message(i % 2 == 0 ? "a" : "b", "m" + i));
+            assertEquals(first + i, message.getSeq());
+            // seq is written to message itself
+            assertEquals(first + i, parse(message).getSeq());
+        }
+        assertEquals(first + 9, log.getLastSeq());
+
+        // nothing is lost yet, 0 - nothing received (not a gap from seq 0 to log id)
+        assertFalse(log.isGap(first - 1));
+        assertFalse(log.isGap(first + 5));
+        assertFalse(log.isOwn(0));
+        assertFalse(log.isGap(0));
+
+        List<ServerMessage> all = readAll(log, first - 1);
+        assertEquals(10, all.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(first + i, all.get(i).getSeq());
+            assertEquals("m" + i, all.get(i).getMessage());
+        }
+
+        // filter and afterSeq
+        List<ServerMessage> a = read(log.read(first + 3, Long.MAX_VALUE, (room, from, to) -> room.equals("a")));
+        assertEquals(3, a.size());
+        assertEquals("m4", a.get(0).getMessage());
+
+        // untilSeq
+        assertEquals(2, read(log.read(first - 1, first + 1, (room, from, to) -> true)).size());
+    }
+
+
+    @Test
+    void reopen() throws Exception {
+
+        MessageLog log = open(1 << 16, 8);
+        for (int i = 0; i < 5; i++) {
+            log.append(message("a", "m" + i));
+        }
+        long last = log.getLastSeq();
+        log.preDestroy();
+
+        MessageLog reopened = open(1 << 16, 8);
+        assertEquals(last, reopened.getLastSeq());
+        assertEquals(last + 1, reopened.append(message("a", "m5")).getSeq());
+
+        // log id is kept, seq of other log is recognized
+        assertTrue(reopened.isOwn(last));
+        assertFalse(reopened.isOwn(last ^ 1L << 48));
+
+        List<ServerMessage> all = readAll(reopened, reopened.getFirstSeq() - 1);
+        assertEquals(6, all.size());
+        assertEquals("m5", all.get(5).getMessage());
+    }
+
+
+    @Test
+    void tornRecordIsDropped() throws Exception {
+
+        MessageLog log = open(1 << 16, 8);
+        long first = log.getFirstSeq();
+        long size = 0;
+        for (int i = 0; i < 5; i++) {
+            log.append(message("a", "m" + i));
+            if (i == 2) {
+                size = readAll(log, first - 1).stream().mapToLong(m -> 12 + m.getSerializedSize()).sum();
+            }
+        }
+        log.preDestroy();
+        opened.remove(log);
+
+        // crash in the middle of record 4
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.truncate(size + 7);
+        }
+
+        MessageLog reopened = open(1 << 16, 8);
+        assertEquals(first + 2, reopened.getLastSeq());
+
+        // log continues after last valid record
+        assertEquals(first + 3, reopened.append(message("a", "new")).getSeq());
+        List<ServerMessage> all = readAll(reopened, first - 1);
+        assertEquals(4, all.size());
+        assertEquals("new", all.get(3).getMessage());
+    }
+
+
+    @Test
+    void retentionAndOldAfterSeq() throws Exception {
+
+        MessageLog log = open(256, 2);
+        long first = log.getFirstSeq();
+        for (int i = 0; i < 50; i++) {
+            log.append(message("a", "m" + i));
+        }
+
+        // old segments are deleted by flusher, wait for it
+        log.preDestroy();
+        assertEquals(2, segments().size());
+        assertTrue(log.getFirstSeq() > first);
+
+        assertTrue(log.isGap(first - 1));
+        assertFalse(log.isGap(log.getFirstSeq() - 1));
+        assertFalse(log.isGap(0));
+
+        // afterSeq older than retained segments - read from oldest retained record
+        List<ServerMessage> all = readAll(log, first - 1);
+        assertEquals(log.getFirstSeq(), all.get(0).getSeq());
+        assertEquals(log.getLastSeq(), all.get(all.size() - 1).getSeq());
+        assertEquals(log.getLastSeq() - log.getFirstSeq() + 1, all.size());
+    }
+
+
+    @Test
+    void concurrentAppend() throws Exception {
+
+        int threads = 4;
+        int count = 2000;
+        MessageLog log = open(4096, 10000);
+        long first = log.getFirstSeq();
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String room = "r" + t;
+            Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    log.append(message(room, "m" + i));
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(first + threads * count - 1, log.getLastSeq());
+        assertTrue(segments().size() > 1);
+
+        // contiguous seqs, messages of each writer are in order
+        List<ServerMessage> all = readAll(log, first - 1);
+        assertEquals(threads * count, all.size());
+        int[] next = new int[threads];
+        for (int i = 0; i < all.size(); i++) {
+            ServerMessage message = all.get(i);
+            assertEquals(first + i, message.getSeq());
+            int t = Integer.parseInt(message.getRoom().substring(1));
+            assertEquals("m" + next[t]++, message.getMessage());
+        }
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private MessageLog open(int segmentSize, int maxSegments) throws IOException {
+
+        RoomHistory roomHistory = new RoomHistory();
+        ReflectionTestUtils.setField(roomHistory, "size", 16);
+        roomHistory.postConstruct();
+
+        MessageLog log = new MessageLog();
+        ReflectionTestUtils.setField(log, "dir", dir.toString());
+        ReflectionTestUtils.setField(log, "segmentSize", segmentSize);
+        ReflectionTestUtils.setField(log, "maxSegments", maxSegments);
+        log.setRoomHistory(roomHistory);
+        log.postConstruct();
+        opened.add(log);
+        return log;
+    }
+
+    private List<Path> segments() throws IOException {
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static ServerMessage message(String room, String text) {
+        return ServerMessage.newBuilder().setRoom(room).setFrom("user").setMessage(text).build();
+    }
+
+    private static List<ServerMessage> readAll(MessageLog log, long afterSeq) throws IOException {
+        return read(log.read(afterSeq, Long.MAX_VALUE, (room, from, to) -> true));
+    }
+
+    private static List<ServerMessage> read(Iterator<SerializedMessage> it) throws IOException {
+
+        List<ServerMessage> result = new ArrayList<>();
+        while (it.hasNext()) {
+            result.add(parse(it.next()));
+        }
+        return result;
+    }
+
+    private static ServerMessage parse(SerializedMessage message) throws IOException {
+
+        try (InputStream stream = SerializedMessage.MARSHALLER.stream(message)) {
+            return ServerMessage.parseFrom(stream);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package ru.home.grpc.chat.server.service;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.ServerMessageBatch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+
+    private final TestObserver observer = new TestObserver();
+
+    private final AtomicInteger disconnected = new AtomicInteger();
+
+    private ScheduledExecutorService scheduler;
+
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+
+    @Test
+    void deliveredWhileReady() throws IOException {
+
+        OutboundQueue queue = create(4, SlowConsumerPolicy.DROP_OLDEST);
+
+        assertTrue(queue.offer(message("m1", 0)));
+        assertEquals(Arrays.asList("m1"), texts(observer.messages));
+
+        // flow control window closed - messages are held in queue
+        observer.ready = false;
+        assertTrue(queue.offer(message("m2", 0)));
+        assertTrue(queue.offer(message("m3", 0)));
+        assertEquals(1, observer.messages.size());
+        assertEquals(2, queue.size());
+
+        observer.setReady();
+        assertEquals(Arrays.asList("m1", "m2", "m3"), texts(observer.messages));
+        assertEquals(0, queue.size());
+    }
+
+
+    @Test
+    void dropOldest() throws IOException {
+
+        observer.ready = false;
+        OutboundQueue queue = create(2, SlowConsumerPolicy.DROP_OLDEST);
+
+        assertTrue(queue.offer(message("m1", 0)));
+        assertTrue(queue.offer(message("m2", 0)));
+        assertTrue(queue.offer(message("m3", 0)));
+        assertEquals(1, queue.getDropped());
+
+        observer.setReady();
+        assertEquals(Arrays.asList("m2", "m3"), texts(observer.messages));
+        assertEquals(0, disconnected.get());
+    }
+
+
+    @Test
+    void coalesce() throws IOException {
+
+        observer.ready = false;
+        OutboundQueue queue = create(1, SlowConsumerPolicy.COALESCE);
+
+        assertTrue(queue.offer(message("m1", 0)));
+        assertTrue(queue.offer(message("m2", 0)));
+        assertTrue(queue.offer(message("m3", 0)));
+        assertEquals(2, queue.getDropped());
+
+        // notice takes spare slot, last message is kept, undelivered notice is merged into new one
+        observer.setReady();
+        List<ServerMessage> messages = parse(observer.messages);
+        assertEquals(2, messages.size());
+        assertEquals("server", messages.get(0).getFrom());
+        assertEquals("2 messages skipped", messages.get(0).getMessage());
+        assertEquals("m3", messages.get(1).getMessage());
+
+        // delivered notice is not counted again
+        observer.ready = false;
+        assertTrue(queue.offer(message("m4", 0)));
+        assertTrue(queue.offer(message("m5", 0)));
+        assertEquals(3, queue.getDropped());
+        observer.setReady();
+        assertEquals(Arrays.asList("m3", "1 messages skipped", "m5"), texts(observer.messages.subList(1, 4)));
+    }
+
+
+    @Test
+    void disconnectSlowConsumer() {
+
+        observer.ready = false;
+        OutboundQueue queue = create(2, SlowConsumerPolicy.DISCONNECT);
+
+        assertTrue(queue.offer(message("m1", 0)));
+        assertTrue(queue.offer(message("m2", 0)));
+        assertFalse(queue.offer(message("m3", 0)));
+
+        assertTrue(queue.isClosed());
+        assertEquals(3, queue.getDropped());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, Status.fromThrowable(observer.error).getCode());
+        assertEquals(1, disconnected.get());
+        assertTrue(observer.messages.isEmpty());
+
+        assertFalse(queue.offer(message("m4", 0)));
+        assertFalse(queue.disconnect(Status.CANCELLED));
+        assertEquals(1, disconnected.get());
+    }
+
+
+    @Test
+    void complete() {
+
+        OutboundQueue queue = create(2, SlowConsumerPolicy.DROP_OLDEST);
+
+        assertTrue(queue.complete());
+        assertTrue(observer.completed);
+        assertNull(observer.error);
+        assertEquals(1, disconnected.get());
+
+        assertFalse(queue.complete());
+        assertEquals(1, disconnected.get());
+    }
+
+
+    @Test
+    void replayBeforeQueued() throws IOException {
+
+        observer.ready = false;
+        OutboundQueue queue = create(4, SlowConsumerPolicy.DROP_OLDEST);
+
+        // live messages arrived while history is read, seq 11 is in both
+        assertTrue(queue.offer(message("live11", 11)));
+        assertTrue(queue.offer(message("live12", 12)));
+        assertEquals(11, queue.getFirstLiveSeq());
+
+        queue.replay(Arrays.asList(message("old10", 10), message("old11", 11)).iterator(), 11);
+
+        observer.setReady();
+        assertEquals(Arrays.asList("old10", "old11", "live12"), texts(observer.messages));
+    }
+
+
+    @Test
+    void batchAssembly() throws IOException {
+
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        observer.ready = false;
+
+        // window is long, so drain is started by maxBatch or onReady only
+        OutboundQueue queue = create(16, SlowConsumerPolicy.DROP_OLDEST).batching(scheduler, 60_000, 3);
+        for (int i = 1; i <= 7; i++) {
+            assertTrue(queue.offer(message("m" + i, 0)));
+        }
+
+        observer.setReady();
+        List<ServerMessageBatch> batches = parseBatches(observer.messages);
+        assertEquals(3, batches.size());
+        assertEquals(Arrays.asList("m1", "m2", "m3"), batchTexts(batches.get(0)));
+        assertEquals(Arrays.asList("m4", "m5", "m6"), batchTexts(batches.get(1)));
+        assertEquals(Arrays.asList("m7"), batchTexts(batches.get(2)));
+    }
+
+
+    @Test
+    void batchWindow() throws Exception {
+
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        OutboundQueue queue = create(16, SlowConsumerPolicy.DROP_OLDEST).batching(scheduler, 50, 10);
+
+        assertTrue(queue.offer(message("m1", 0)));
+        assertTrue(queue.offer(message("m2", 0)));
+
+        // delayed for window, then sent together
+        assertTrue(observer.messages.isEmpty());
+        long deadline = System.currentTimeMillis() + 3000;
+        while (observer.messages.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<ServerMessageBatch> batches = parseBatches(observer.messages);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("m1", "m2"), batchTexts(batches.get(0)));
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private OutboundQueue create(int capacity, SlowConsumerPolicy policy) {
+        return new OutboundQueue(observer, Runnable::run, capacity, policy, disconnected::incrementAndGet);
+    }
+
+    private static SerializedMessage message(String text, long seq) {
+        return SerializedMessage.of(ServerMessage.newBuilder().setFrom("user").setMessage(text).setSeq(seq).build());
+    }
+
+    private static List<ServerMessage> parse(List<SerializedMessage> messages) throws IOException {
+
+        List<ServerMessage> result = new ArrayList<>();
+        for (SerializedMessage message : messages) {
+            try (InputStream stream = SerializedMessage.MARSHALLER.stream(message)) {
+                result.add(ServerMessage.parseFrom(stream));
+            }
+        }
+        return result;
+    }
+
+    private static List<ServerMessageBatch> parseBatches(List<SerializedMessage> messages) throws IOException {
+
+        List<ServerMessageBatch> result = new ArrayList<>();
+        for (SerializedMessage message : messages) {
+            try (InputStream stream = SerializedMessage.MARSHALLER.stream(message)) {
+                result.add(ServerMessageBatch.parseFrom(stream));
+            }
+        }
+        return result;
+    }
+
+    private static List<String> texts(List<SerializedMessage> messages) throws IOException {
+        return parse(messages).stream().map(ServerMessage::getMessage).collect(Collectors.toList());
+    }
+
+    private static List<String> batchTexts(ServerMessageBatch batch) {
+        return batch.getMessagesList().stream().map(ServerMessage::getMessage).collect(Collectors.toList());
+    }
+
+
+    /**
+     * Records delivered messages, readiness is set by test
+     */
+    private static class TestObserver extends ServerCallStreamObserver<SerializedMessage> {
+
+        final List<SerializedMessage> messages = new ArrayList<>();
+        volatile boolean ready = true;
+        volatile Throwable error;
+        volatile boolean completed;
+
+        private Runnable onReadyHandler;
+
+        void setReady() {
+            ready = true;
+            onReadyHandler.run();
+        }
+
+        @Override
+        public boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setOnReadyHandler(Runnable onReadyHandler) {
+            this.onReadyHandler = onReadyHandler;
+        }
+
+        @Override
+        public synchronized void onNext(SerializedMessage value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public void setOnCancelHandler(Runnable onCancelHandler) {
+        }
+
+        @Override
+        public void setCompression(String compression) {
+        }
+
+        @Override
+        public void disableAutoInboundFlowControl() {
+        }
+
+        @Override
+        public void request(int count) {
+        }
+
+        @Override
+        public void setMessageCompression(boolean enable) {
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package ru.home.grpc.chat.server.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.home.grpc.chat.ServerMessage;
+import ru.home.grpc.chat.server.entities.Client;
+import ru.home.grpc.chat.server.entities.Client.State;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionRegistryTest {
+
+    private SessionRegistry registry;
+
+    private RoomHistory roomHistory;
+
+
+    @BeforeEach
+    void setUp() {
+
+        roomHistory = new RoomHistory();
+        ReflectionTestUtils.setField(roomHistory, "size", 4);
+        roomHistory.postConstruct();
+
+        registry = new SessionRegistry();
+        ReflectionTestUtils.setField(registry, "shardCount", 4);
+        ReflectionTestUtils.setField(registry, "pendingTtl", 1);
+        registry.setRoomHistory(roomHistory);
+        registry.postConstruct();
+    }
+
+
+    @AfterEach
+    void tearDown() {
+        registry.preDestroy();
+    }
+
+
+    @Test
+    void pendingStreamingClosed() {
+
+        Client client = new Client("user", "token");
+        registry.add(client);
+
+        assertSame(client, registry.get("token"));
+        assertEquals(1, registry.getPendingCount());
+        assertFalse(registry.isOnline("user"));
+
+        assertTrue(registry.bind(client));
+        assertEquals(State.STREAMING, client.getState());
+        assertEquals(0, registry.getPendingCount());
+        assertEquals(1, registry.getStreamingCount());
+        assertTrue(registry.isOnline("user"));
+
+        // stream opened twice with same token
+        assertFalse(registry.bind(client));
+
+        // streaming client is not removed as pending one
+        assertFalse(registry.removePending(client));
+
+        assertTrue(registry.remove(client));
+        assertFalse(registry.remove(client));
+        assertEquals(State.CLOSED, client.getState());
+        assertNull(registry.get("token"));
+        assertTrue(registry.getByLogin("user").isEmpty());
+        assertEquals(0, registry.getStreamingCount());
+    }
+
+
+    @Test
+    void bindAfterRemove() {
+
+        Client client = new Client("user", "token");
+        registry.add(client);
+
+        assertTrue(registry.removePending(client));
+        assertFalse(registry.bind(client));
+        assertEquals(0, registry.getStreamingCount());
+    }
+
+
+    @Test
+    void tokenOfOtherClient() {
+
+        Client client = new Client("user", "token");
+        registry.add(client);
+
+        // signed token resolved to new Client instance, token already used by registered one
+        assertFalse(registry.bind(new Client("user", "token")));
+        assertTrue(registry.bind(client));
+    }
+
+
+    @Test
+    void signedTokenOneStreamAtTime() {
+
+        // signed token: not added as pending, each stream resolves token to new Client
+        Client first = new Client("user", "signed");
+        assertTrue(registry.bind(first));
+        assertEquals(0, registry.getPendingCount());
+
+        // second stream with same token while first one is live
+        Client second = new Client("user", "signed");
+        assertFalse(registry.bind(second));
+        assertEquals(1, registry.getStreamingCount());
+        assertEquals(1, registry.getByLogin("user").size());
+
+        // first stream closed - token may be used again (until it expires)
+        assertTrue(registry.remove(first));
+        Client third = new Client("user", "signed");
+        assertTrue(registry.bind(third));
+        assertSame(third, registry.get("signed"));
+    }
+
+
+    @Test
+    void concurrentBindAndRemove() throws Exception {
+
+        for (int i = 0; i < 2000; i++) {
+
+            Client client = new Client("user" + i % 10, "token" + i);
+            registry.add(client);
+
+            CyclicBarrier barrier = new CyclicBarrier(2);
+            boolean[] bound = new boolean[1];
+
+            Thread binder = new Thread(() -> {
+                await(barrier);
+                bound[0] = registry.bind(client);
+            });
+            binder.start();
+
+            await(barrier);
+            boolean disconnect = i % 2 == 0;
+            boolean removed = disconnect ? registry.remove(client) : registry.removePending(client);
+            binder.join();
+
+            if (disconnect) {
+                // disconnect always wins, client is not left streaming
+                assertTrue(removed);
+                assertEquals(State.CLOSED, client.getState());
+            }
+            else {
+                // expiry and stream open: exactly one wins
+                assertNotEquals(removed, bound[0]);
+                assertEquals(bound[0] ? State.STREAMING : State.CLOSED, client.getState());
+            }
+
+            // state indexes follow final state
+            assertEquals(client.getState() == State.STREAMING ? 1 : 0, registry.getStreamingCount());
+            assertEquals(0, registry.getPendingCount());
+
+            registry.remove(client);
+        }
+        assertTrue(registry.getRooms().isEmpty());
+    }
+
+
+    @Test
+    void roomHistoryLivesWithMembers() {
+
+        Client a = new Client("a", "token-a");
+        Client b = new Client("b", "token-b");
+        registry.add(a);
+        registry.add(b);
+
+        registry.join("room", a);
+        registry.join("room", b);
+        roomHistory.add("room", SerializedMessage.of(ServerMessage.newBuilder().setMessage("hello").build()));
+        assertEquals(1, roomHistory.last("room", 0).size());
+
+        registry.leave("room", a);
+        assertEquals(1, roomHistory.last("room", 0).size());
+
+        // last member gone - room and its history are dropped
+        registry.remove(b);
+        assertFalse(registry.getRooms().contains("room"));
+        assertTrue(roomHistory.last("room", 0).isEmpty());
+
+        // message to empty room is not kept
+        roomHistory.add("room", SerializedMessage.of(ServerMessage.newBuilder().setMessage("late").build()));
+        assertTrue(roomHistory.last("room", 0).isEmpty());
+    }
+
+
+    @Test
+    void pendingExpires() throws Exception {
+
+        Client client = new Client("user", "token");
+        registry.add(client);
+
+        // pending-ttl 1 s, wheel tick 100 ms
+        assertTrue(waitFor(() -> client.getState() == State.CLOSED, 3000));
+        assertNull(registry.get("token"));
+        assertEquals(0, registry.getPendingCount());
+        assertTrue(registry.getByLogin("user").isEmpty());
+    }
+
+
+    @Test
+    void streamingNotExpired() throws Exception {
+
+        Client streaming = new Client("user", "token");
+        Client pending = new Client("user", "token2");
+        registry.add(streaming);
+        registry.add(pending);
+        assertTrue(registry.bind(streaming));
+
+        assertTrue(waitFor(() -> pending.getState() == State.CLOSED, 3000));
+
+        // expiry was cancelled on bind
+        assertEquals(State.STREAMING, streaming.getState());
+        assertSame(streaming, registry.get("token"));
+        assertEquals(1, registry.getStreamingCount());
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private static boolean waitFor(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private static void await(CyclicBarrier barrier) {
+
+        try {
+            barrier.await();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
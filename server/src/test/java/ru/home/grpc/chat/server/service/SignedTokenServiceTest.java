@@ -0,0 +1,100 @@
+package ru.home.grpc.chat.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import ru.home.grpc.chat.server.entities.Client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignedTokenServiceTest {
+
+    @Test
+    void issueAndResolve() {
+
+        SignedTokenService service = create("secret", 10);
+        String token = service.issue("user");
+
+        Client client = service.resolve(token);
+        assertNotNull(client);
+        assertEquals("user", client.getLogin());
+        assertEquals(token, client.getToken());
+
+        // each issue is new session
+        assertNotEquals(token, service.issue("user"));
+    }
+
+
+    @Test
+    void loginWithColon() {
+
+        SignedTokenService service = create("secret", 10);
+
+        Client client = service.resolve(service.issue("user:with:colons"));
+        assertNotNull(client);
+        assertEquals("user:with:colons", client.getLogin());
+    }
+
+
+    @Test
+    void tamperedToken() {
+
+        SignedTokenService service = create("secret", 10);
+        String token = service.issue("user");
+        int dot = token.indexOf('.');
+        String payload = token.substring(0, dot);
+        String signature = token.substring(dot + 1);
+
+        // login replaced, old signature kept
+        String[] claims = decode(payload).split(":", 3);
+        String forged = encode(claims[0] + ":" + claims[1] + ":admin");
+        assertNull(service.resolve(forged + "." + signature));
+
+        // signature changed
+        char c = signature.charAt(0) == 'A' ? 'B' : 'A';
+        assertNull(service.resolve(payload + "." + c + signature.substring(1)));
+
+        // malformed
+        assertNull(service.resolve(payload));
+        assertNull(service.resolve("." + signature));
+        assertNull(service.resolve(payload + ".%%%"));
+        assertNull(service.resolve(""));
+
+        // other secret
+        assertNull(create("other", 10).resolve(token));
+        assertNotNull(create("secret", 10).resolve(token));
+    }
+
+
+    @Test
+    void expiredToken() throws InterruptedException {
+
+        SignedTokenService service = create("secret", 0);
+        String token = service.issue("user");
+        Thread.sleep(10);
+        assertNull(service.resolve(token));
+    }
+
+
+    // ----------------------------------------------------------------------------
+
+
+    private static SignedTokenService create(String secret, int ttl) {
+
+        SignedTokenService service = new SignedTokenService();
+        ReflectionTestUtils.setField(service, "secret", secret);
+        ReflectionTestUtils.setField(service, "ttl", ttl);
+        service.postConstruct();
+        return service;
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value) {
+        return new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+    }
+}
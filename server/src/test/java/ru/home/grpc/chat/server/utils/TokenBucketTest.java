@@ -0,0 +1,108 @@
+package ru.home.grpc.chat.server.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    @Test
+    void burstThenEmpty() {
+
+        // rate 1/s - no refill during test
+        TokenBucket bucket = new TokenBucket(1, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.hasToken());
+            assertTrue(bucket.tryAcquire());
+        }
+        assertFalse(bucket.hasToken());
+        assertFalse(bucket.tryAcquire());
+    }
+
+
+    @Test
+    void hasTokenTakesNothing() {
+
+        TokenBucket bucket = new TokenBucket(1, 1);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.hasToken());
+        }
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.hasToken());
+    }
+
+
+    @Test
+    void refill() throws InterruptedException {
+
+        // token each 50 ms
+        TokenBucket bucket = new TokenBucket(20, 2);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+
+        Thread.sleep(60);
+        assertTrue(bucket.tryAcquire());
+    }
+
+
+    @Test
+    void idleDoesNotExceedBurst() throws InterruptedException {
+
+        // token each 10 ms
+        TokenBucket bucket = new TokenBucket(100, 3);
+        Thread.sleep(100);
+
+        int taken = 0;
+        while (bucket.tryAcquire()) {
+            taken++;
+        }
+        // one more token may be refilled while taking
+        assertTrue(taken == 3 || taken == 4, "taken " + taken);
+    }
+
+
+    @Test
+    void concurrentAcquire() throws InterruptedException {
+
+        int burst = 1000;
+        int threads = 4;
+        TokenBucket bucket = new TokenBucket(1, burst);
+
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < burst; i++) {
+                    if (bucket.tryAcquire()) {
+                        taken.incrementAndGet();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // no token is lost or given twice on CAS contention (refill is 1/s)
+        // (one more token if test took over 1 s)
+        assertTrue(taken.get() == burst || taken.get() == burst + 1, "taken " + taken);
+    }
+}